@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The fields of a device description, immutable.
+ * <p>
+ * The values shared by many devices (type, manufacturer, model) are pooled, the
+ * friendly name is not.
+ */
+final class UPnPDescription {
+
+    static final UPnPIcon[] NO_ICONS = new UPnPIcon[0];
+
+    static final UPnPDescription EMPTY = new UPnPDescription(null, null, null, null, null, NO_ICONS);
+
+    @Nullable
+    final String mFriendlyName;
+    @Nullable
+    final String mDeviceType;
+    @Nullable
+    final String mManufacturer;
+    @Nullable
+    final String mManufacturerUrl;
+    @Nullable
+    final String mModelName;
+    // In the order of the iconList, never modified
+    @NonNull
+    final UPnPIcon[] mIcons;
+
+    private UPnPDescription(@Nullable String friendlyName,
+                            @Nullable String deviceType,
+                            @Nullable String manufacturer,
+                            @Nullable String manufacturerUrl,
+                            @Nullable String modelName,
+                            @NonNull UPnPIcon[] icons) {
+        this.mFriendlyName = friendlyName;
+        this.mDeviceType = deviceType;
+        this.mManufacturer = manufacturer;
+        this.mManufacturerUrl = manufacturerUrl;
+        this.mModelName = modelName;
+        this.mIcons = icons;
+    }
+
+    /**
+     * @param fields the fields, under the "xml_*" keys of {@link UPnPDescriptionParser}
+     */
+    @NonNull
+    static UPnPDescription of(@NonNull Map<String, String> fields, @NonNull UPnPIcon[] icons) {
+        return of(fields.get(UPnPDescriptionParser.KEY_FRIENDLY_NAME),
+                fields.get(UPnPDescriptionParser.KEY_DEVICE_TYPE),
+                fields.get(UPnPDescriptionParser.KEY_MANUFACTURER),
+                fields.get(UPnPDescriptionParser.KEY_MANUFACTURER_URL),
+                fields.get(UPnPDescriptionParser.KEY_MODEL_NAME),
+                icons);
+    }
+
+    @NonNull
+    static UPnPDescription of(@Nullable String friendlyName,
+                              @Nullable String deviceType,
+                              @Nullable String manufacturer,
+                              @Nullable String manufacturerUrl,
+                              @Nullable String modelName,
+                              @NonNull UPnPIcon[] icons) {
+        if (friendlyName == null && deviceType == null && manufacturer == null
+                && manufacturerUrl == null && modelName == null && icons.length == 0) {
+            return EMPTY;
+        }
+        return new UPnPDescription(friendlyName,
+                UPnPStrings.intern(deviceType),
+                UPnPStrings.intern(manufacturer),
+                UPnPStrings.intern(manufacturerUrl),
+                UPnPStrings.intern(modelName),
+                icons.length == 0 ? NO_ICONS : icons);
+    }
+
+    boolean isEmpty() {
+        return this == EMPTY;
+    }
+
+    /**
+     * @return the text fields set, under the "xml_*" keys
+     */
+    @NonNull
+    HashMap<String, String> toMap() {
+        HashMap<String, String> fields = new HashMap<>();
+        put(fields, UPnPDescriptionParser.KEY_FRIENDLY_NAME, mFriendlyName);
+        put(fields, UPnPDescriptionParser.KEY_DEVICE_TYPE, mDeviceType);
+        put(fields, UPnPDescriptionParser.KEY_MANUFACTURER, mManufacturer);
+        put(fields, UPnPDescriptionParser.KEY_MANUFACTURER_URL, mManufacturerUrl);
+        put(fields, UPnPDescriptionParser.KEY_MODEL_NAME, mModelName);
+        return fields;
+    }
+
+    private static void put(@NonNull Map<String, String> fields, @NonNull String key, @Nullable String value) {
+        if (value != null) {
+            fields.put(key, value);
+        }
+    }
+
+    /**
+     * @return the approximate heap size of the fields owned by this description
+     */
+    int getFootprint() {
+        int footprint = UPnPDevice.OBJECT_SIZE + 6 * UPnPDevice.REFERENCE_SIZE
+                + UPnPDevice.sizeOf(mFriendlyName) + UPnPDevice.sizeOf(mDeviceType)
+                + UPnPDevice.sizeOf(mManufacturer) + UPnPDevice.sizeOf(mManufacturerUrl)
+                + UPnPDevice.sizeOf(mModelName);
+        if (mIcons.length > 0) {
+            footprint += 16 + mIcons.length * UPnPDevice.REFERENCE_SIZE;
+            for (UPnPIcon icon : mIcons) {
+                footprint += icon.getFootprint();
+            }
+        }
+        return footprint;
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent cache of the parsed device descriptions.
+ * <p>
+ * Entries are keyed by USN (which embeds the device UDN) and are only valid as long
+ * as the device keeps the same LOCATION and advertises the same BOOTID.UPNP.ORG /
+ * CONFIGID.UPNP.ORG. UPnP 1.0 devices send neither, and nothing tells when their
+ * description changes (a renamed device keeps its SERVER header): their entries expire
+ * after {@link #UNVALIDATED_TTL_MS}, and are downloaded again. On a hit, the device can
+ * be published from its SSDP response alone.
+ * <p>
+ * The whole cache lives in memory: the file is loaded in the background as soon as the
+ * cache is created (until then, every lookup is a miss), and written back shortly after
+ * being modified. The least recently used entries are evicted first.
+ */
+public class UPnPDescriptionCache {
+
+    private static final String TAG = "UPnPDescriptionCache";
+
+    private static final String FILE_NAME = "upnp_descriptions.bin";
+    private static final int FILE_VERSION = 3;
+
+    private static final int DEFAULT_MAX_ENTRIES = 512;
+    private static final long SAVE_DELAY_MS = TimeUnit.SECONDS.toMillis(2);
+
+    // How long the description of a device without BOOTID / CONFIGID is trusted
+    // (the default SSDP max-age)
+    static final long UNVALIDATED_TTL_MS = TimeUnit.MINUTES.toMillis(30);
+
+    @NonNull
+    private final File mFile;
+
+    private final int mMaxEntries;
+
+    @NonNull
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    // Until the file has been loaded, in the background
+    private boolean mLoading = true;
+
+    private boolean mSaveScheduled;
+
+    @NonNull
+    private final ScheduledThreadPoolExecutor mSaveExecutor;
+
+    public UPnPDescriptionCache(@NonNull Context context) {
+        this(new File(context.getCacheDir(), FILE_NAME), DEFAULT_MAX_ENTRIES);
+    }
+
+    public UPnPDescriptionCache(@NonNull File file, int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.mFile = file;
+        this.mMaxEntries = maxEntries;
+        this.mEntries = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+
+        mSaveExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "UPnPDescriptionCache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mSaveExecutor.setKeepAliveTime(SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        mSaveExecutor.allowCoreThreadTimeOut(true);
+
+        // Off the discovery threads: a lookup never waits for the disk
+        mSaveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * @return the cached description of the device, or null if it is unknown, stale or
+     * not loaded yet
+     */
+    @Nullable
+    synchronized UPnPDescription get(@NonNull UPnPDevice device) {
+        String key = device.getUsn();
+        if (key == null) {
+            return null;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.mLocation.equals(device.getLocation().toExternalForm())
+                || !entry.mValidator.equals(validatorOf(device))
+                || (entry.mExpiresAt > 0 && entry.mExpiresAt <= System.currentTimeMillis())) {
+            mEntries.remove(key);
+            scheduleSave();
+            return null;
+        }
+        return entry.mDescription;
+    }
+
+    synchronized void put(@NonNull UPnPDevice device,
+                          @NonNull UPnPDescription description) {
+        String key = device.getUsn();
+        if (key == null || description.isEmpty()) {
+            return;
+        }
+        boolean validated = device.getBootId() != null || device.getConfigId() != null;
+        mEntries.put(key, new Entry(device.getLocation().toExternalForm(), validatorOf(device),
+                validated ? 0 : System.currentTimeMillis() + UNVALIDATED_TTL_MS, description));
+        scheduleSave();
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        // Nor the entries still being loaded
+        mLoading = false;
+        scheduleSave();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    @NonNull
+    private static String validatorOf(@NonNull UPnPDevice device) {
+        String bootId = device.getBootId();
+        String configId = device.getConfigId();
+        if (bootId == null && configId == null) {
+            // Not a validator: only catches the obvious firmware changes, see UNVALIDATED_TTL_MS
+            return "server:" + device.getServer();
+        }
+        return bootId + "|" + configId;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // Persistence
+    ////////////////////////////////////////////////////////////////////////////////
+
+    private void scheduleSave() {
+        if (mSaveScheduled) {
+            return;
+        }
+        mSaveScheduled = true;
+        mSaveExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the file, on the cache thread. The entries put in the meantime are kept.
+     */
+    private void load() {
+        LinkedHashMap<String, Entry> loaded = new LinkedHashMap<>();
+        if (mFile.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+                if (in.readInt() != FILE_VERSION) {
+                    Log.i(TAG, "load: obsolete cache file, ignored");
+                } else {
+                    readEntries(in, loaded);
+                    Log.d(TAG, "load: " + loaded.size() + " descriptions");
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "load.IOException: ", e);
+                loaded.clear();
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        synchronized (this) {
+            if (!mLoading) {
+                // Cleared meanwhile
+                return;
+            }
+            mLoading = false;
+            // Least recently used first, behind the newer entries
+            LinkedHashMap<String, Entry> current = new LinkedHashMap<>(mEntries);
+            mEntries.clear();
+            for (Map.Entry<String, Entry> item : loaded.entrySet()) {
+                if (!current.containsKey(item.getKey())) {
+                    mEntries.put(item.getKey(), item.getValue());
+                }
+            }
+            mEntries.putAll(current);
+        }
+    }
+
+    private static void readEntries(@NonNull DataInputStream in,
+                                    @NonNull Map<String, Entry> entries) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            String location = in.readUTF();
+            String validator = in.readUTF();
+            long expiresAt = in.readLong();
+            int size = in.readInt();
+            HashMap<String, String> description = new HashMap<>(size * 2);
+            for (int j = 0; j < size; j++) {
+                description.put(in.readUTF(), in.readUTF());
+            }
+            UPnPIcon[] icons = new UPnPIcon[in.readInt()];
+            for (int j = 0; j < icons.length; j++) {
+                String mimeType = in.readUTF();
+                icons[j] = new UPnPIcon(mimeType.isEmpty() ? null : mimeType,
+                        in.readInt(), in.readInt(), in.readInt(), in.readUTF());
+            }
+            entries.put(key, new Entry(location, validator, expiresAt, UPnPDescription.of(description, icons)));
+        }
+    }
+
+    /**
+     * Writes the file, on the cache thread. Only the snapshot of the entries is taken
+     * under the lock.
+     */
+    private void save() {
+        List<String> keys;
+        List<Entry> values;
+        synchronized (this) {
+            mSaveScheduled = false;
+            keys = new ArrayList<>(mEntries.keySet());
+            values = new ArrayList<>(mEntries.values());
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                Entry entry = values.get(i);
+                out.writeUTF(keys.get(i));
+                out.writeUTF(entry.mLocation);
+                out.writeUTF(entry.mValidator);
+                out.writeLong(entry.mExpiresAt);
+                HashMap<String, String> description = entry.mDescription.toMap();
+                out.writeInt(description.size());
+                for (Map.Entry<String, String> field : description.entrySet()) {
+                    out.writeUTF(field.getKey());
+                    out.writeUTF(field.getValue() == null ? "" : field.getValue());
+                }
+                UPnPIcon[] icons = entry.mDescription.mIcons;
+                out.writeInt(icons.length);
+                for (UPnPIcon icon : icons) {
+                    out.writeUTF(icon.getMimeType() == null ? "" : icon.getMimeType());
+                    out.writeInt(icon.getWidth());
+                    out.writeInt(icon.getHeight());
+                    out.writeInt(icon.getDepth());
+                    out.writeUTF(icon.getUrl());
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("cannot rename " + tmp + " to " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "save.IOException: ", e);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // Entry
+    ////////////////////////////////////////////////////////////////////////////////
+
+    private static class Entry {
+
+        @NonNull
+        private final String mLocation;
+
+        @NonNull
+        private final String mValidator;
+
+        // Wall clock time after which the entry is stale, or 0 if it never expires
+        private final long mExpiresAt;
+
+        @NonNull
+        private final UPnPDescription mDescription;
+
+        Entry(@NonNull String location,
+              @NonNull String validator,
+              long expiresAt,
+              @NonNull UPnPDescription description) {
+            this.mLocation = location;
+            this.mValidator = validator;
+            this.mExpiresAt = expiresAt;
+            this.mDescription = description;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Streaming parser of the UPnP device description.
+ * <p>
+ * Reads the description straight from the HTTP response in a single pass, keeping
+ * the first occurrence of each field of the root device and the icons of its iconList,
+ * and stopping as soon as all of them have been found. The embedded devices
+ * (deviceList) are skipped without looking into them, and the parsing never goes past
+ * the end of the root device: a device without icons is read to that point only.
+ */
+class UPnPDescriptionParser {
+
+    static final String KEY_FRIENDLY_NAME = "xml_friendly_name";
+    static final String KEY_DEVICE_TYPE = "xml_device_type";
+    static final String KEY_MANUFACTURER = "xml_manufacturer";
+    static final String KEY_MANUFACTURER_URL = "xml_manufacturer_url";
+    static final String KEY_MODEL_NAME = "xml_model_name";
+
+    private static final int FIELD_COUNT = 5;
+
+    // Depth of the children of the root device (root/device/...)
+    private static final int ROOT_DEVICE_CHILD_DEPTH = 3;
+
+    // The fields of an icon
+    private static final int ICON_MIME_TYPE = 0;
+    private static final int ICON_WIDTH = 1;
+    private static final int ICON_HEIGHT = 2;
+    private static final int ICON_DEPTH = 3;
+    private static final int ICON_URL = 4;
+    private static final int ICON_FIELD_COUNT = 5;
+
+    private UPnPDescriptionParser() {
+    }
+
+    /**
+     * @param in      the description
+     * @param charset the encoding advertised by the server, or null to rely on the xml declaration
+     */
+    @NonNull
+    static UPnPDescription parse(@NonNull InputStream in,
+                                 @Nullable String charset) throws XmlPullParserException, IOException {
+        HashMap<String, String> results = new HashMap<>();
+        ArrayList<UPnPIcon> icons = new ArrayList<>();
+        boolean iconsDone = false;
+
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+        parser.setInput(in, charset);
+
+        StringBuilder text = new StringBuilder();
+        ArrayList<String> path = new ArrayList<>();
+        String key = null;
+        int iconField = -1;
+        // The fields of the icon being read, null outside of the first iconList
+        String[] icon = null;
+        // Depth within the embedded device being skipped, 0 outside of it
+        int skipped = 0;
+
+        int event = parser.getEventType();
+        while (event != XmlPullParser.END_DOCUMENT) {
+            switch (event) {
+                case XmlPullParser.START_TAG: {
+                    if (skipped > 0) {
+                        skipped++;
+                        break;
+                    }
+                    String name = parser.getName();
+                    if (path.size() >= ROOT_DEVICE_CHILD_DEPTH - 1 && "device".equals(name)) {
+                        // An embedded device, below root/device
+                        skipped = 1;
+                        break;
+                    }
+                    String parent = path.isEmpty() ? null : path.get(path.size() - 1);
+                    path.add(name);
+                    text.setLength(0);
+
+                    key = keyOf(name);
+                    if (key != null && results.containsKey(key)) {
+                        key = null;
+                    }
+                    iconField = -1;
+                    if (!iconsDone && "icon".equals(name) && "iconList".equals(parent)) {
+                        icon = new String[ICON_FIELD_COUNT];
+                    } else if (icon != null && "icon".equals(parent)) {
+                        iconField = iconFieldOf(name);
+                    }
+                    break;
+                }
+
+                case XmlPullParser.TEXT:
+                    if (key != null || iconField != -1) {
+                        text.append(parser.getText());
+                    }
+                    break;
+
+                case XmlPullParser.END_TAG: {
+                    if (skipped > 0) {
+                        skipped--;
+                        break;
+                    }
+                    int depth = path.size();
+                    String name = path.isEmpty() ? null : path.remove(path.size() - 1);
+                    if (key != null) {
+                        results.put(key, text.toString());
+                        key = null;
+                    }
+                    if (iconField != -1) {
+                        icon[iconField] = text.toString().trim();
+                        iconField = -1;
+                    } else if (icon != null && "icon".equals(name)) {
+                        if (!TextUtils.isEmpty(icon[ICON_URL])) {
+                            icons.add(new UPnPIcon(icon[ICON_MIME_TYPE], parseInt(icon[ICON_WIDTH]),
+                                    parseInt(icon[ICON_HEIGHT]), parseInt(icon[ICON_DEPTH]), icon[ICON_URL]));
+                        }
+                        icon = null;
+                    } else if ("iconList".equals(name)
+                            && (!icons.isEmpty() || depth == ROOT_DEVICE_CHILD_DEPTH)) {
+                        iconsDone = true;
+                    }
+                    if (depth == ROOT_DEVICE_CHILD_DEPTH - 1 && "device".equals(name)) {
+                        // End of the root device: the rest is not part of its description
+                        return UPnPDescription.of(results, icons.toArray(new UPnPIcon[icons.size()]));
+                    }
+                    if (iconsDone && results.size() == FIELD_COUNT) {
+                        return UPnPDescription.of(results, icons.toArray(new UPnPIcon[icons.size()]));
+                    }
+                    break;
+                }
+            }
+            event = parser.next();
+        }
+
+        return UPnPDescription.of(results, icons.toArray(new UPnPIcon[icons.size()]));
+    }
+
+    @Nullable
+    private static String keyOf(@NonNull String name) {
+        switch (name) {
+            case "friendlyName":
+                return KEY_FRIENDLY_NAME;
+            case "deviceType":
+                return KEY_DEVICE_TYPE;
+            case "manufacturer":
+                return KEY_MANUFACTURER;
+            case "manufacturerURL":
+                return KEY_MANUFACTURER_URL;
+            case "modelName":
+                return KEY_MODEL_NAME;
+            default:
+                return null;
+        }
+    }
+
+    private static int iconFieldOf(@NonNull String name) {
+        switch (name) {
+            case "mimetype":
+                return ICON_MIME_TYPE;
+            case "width":
+                return ICON_WIDTH;
+            case "height":
+                return ICON_HEIGHT;
+            case "depth":
+                return ICON_DEPTH;
+            case "url":
+                return ICON_URL;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return the value, or 0 if missing or invalid
+     */
+    private static int parseInt(@Nullable String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -21,42 +21,96 @@ import androidx.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
-import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXParseException;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
-import java.io.StringReader;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathFactory;
-
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
+import okhttp3.MediaType;
 import okhttp3.ResponseBody;
 
-public class UPnPDevice implements Serializable {
+/**
+ * A device found on the network, immutable.
+ * <p>
+ * Only the headers and description fields in use are kept, in typed fields, and the
+ * values shared by many devices (SERVER, device type, manufacturer...) are pooled. The
+ * SSDP message itself is only kept on request, see {@link UPnPHelper#setRetainRawMessages(boolean)}.
+ */
+public final class UPnPDevice implements Serializable {
+
+    private static final long serialVersionUID = 2L;
 
     private static final String TAG = "UPnPDevice";
 
-    private String mRawUPnP;
-    private String mRawXml;
-    private URL mLocation;
-    private String mServer;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
-    private HashMap<String, String> mProperties;
-    private String mCachedIconUrl;
+    // Approximate sizes of the heap objects, for getFootprint()
+    static final int OBJECT_SIZE = 12;
+    static final int REFERENCE_SIZE = 4;
+    private static final int STRING_SIZE = 24 + 16;
+    private static final int URL_SIZE = 64;
+
+    @NonNull
+    private final URL mLocation;
+    @NonNull
+    private final UPnPSortKey mSortKey;
+    @Nullable
+    private final String mServer;
+    @Nullable
+    private final String mUsn;
+    @Nullable
+    private final String mBootId;
+    @Nullable
+    private final String mConfigId;
+    private final int mMaxAge;
+    @Nullable
+    private final String mNetworkInterface;
+    @NonNull
+    private final UPnPDescription mDescription;
+    // UTF-8, decoded on demand
+    @Nullable
+    private final byte[] mRawUPnP;
 
-    private UPnPDevice() {
+    // Derived from the fields above, see getDisplay() and getIconUrl(int)
+    @Nullable
+    private transient volatile UPnPDeviceDisplay mDisplay;
+    @Nullable
+    private transient volatile IconChoice mIconChoice;
+
+    private UPnPDevice(@NonNull URL location,
+                       @NonNull UPnPSortKey sortKey,
+                       @Nullable String server,
+                       @Nullable String usn,
+                       @Nullable String bootId,
+                       @Nullable String configId,
+                       int maxAge,
+                       @Nullable String networkInterface,
+                       @NonNull UPnPDescription description,
+                       @Nullable byte[] rawUPnP) {
+        this.mLocation = location;
+        this.mSortKey = sortKey;
+        this.mServer = server;
+        this.mUsn = usn;
+        this.mBootId = bootId;
+        this.mConfigId = configId;
+        this.mMaxAge = maxAge;
+        this.mNetworkInterface = networkInterface;
+        this.mDescription = description;
+        this.mRawUPnP = rawUPnP;
     }
 
     @NonNull
@@ -74,49 +128,261 @@ public class UPnPDevice implements Serializable {
     }
 
     @SuppressWarnings("WeakerAccess")
-    @Nullable
+    @NonNull
     public URL getLocation() {
         return mLocation;
     }
 
+    /**
+     * @return the SSDP message, only kept for the devices created by {@link #parse(String)},
+     * or when requested with {@link UPnPHelper#setRetainRawMessages(boolean)}
+     */
     @SuppressWarnings("unused")
+    @Nullable
     public String getRawUPnP() {
+        return mRawUPnP == null ? null : new String(mRawUPnP, UTF_8);
+    }
+
+    @Nullable
+    byte[] getRawBytes() {
         return mRawUPnP;
     }
 
+    /**
+     * @deprecated the description is now parsed while it is downloaded and is no
+     * longer kept in memory: always returns null.
+     */
+    @Deprecated
     @SuppressWarnings("unused")
+    @Nullable
     public String getRawXml() {
-        return mRawXml;
+        return null;
     }
 
+    /**
+     * @return the position of the device in the lists, computed from its LOCATION
+     */
+    @NonNull
+    UPnPSortKey getSortKey() {
+        return mSortKey;
+    }
+
+    @Nullable
     public String getServer() {
         return mServer;
     }
 
+    /**
+     * max-age directive of the CACHE-CONTROL header: number of seconds the device
+     * stays available without announcing itself again.
+     *
+     * @return the max-age in seconds, or -1 if missing or invalid
+     */
+    public int getMaxAge() {
+        return mMaxAge;
+    }
+
+    private static int parseMaxAge(@Nullable String cacheControl) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        int index = cacheControl.toLowerCase(Locale.US).indexOf("max-age");
+        if (index == -1) {
+            return -1;
+        }
+        index += "max-age".length();
+        while (index < cacheControl.length()
+                && (cacheControl.charAt(index) == ' ' || cacheControl.charAt(index) == '=')) {
+            index++;
+        }
+        int maxAge = 0;
+        int digits = 0;
+        while (index < cacheControl.length() && digits < 9) {
+            char c = cacheControl.charAt(index);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            maxAge = maxAge * 10 + (c - '0');
+            index++;
+            digits++;
+        }
+        return digits == 0 ? -1 : maxAge;
+    }
+
+    /**
+     * Name of the network interface the device has been found on ("wlan0"...).
+     */
+    @Nullable
+    public String getNetworkInterface() {
+        return mNetworkInterface;
+    }
+
+    /**
+     * Unique Service Name, as advertised in the SSDP response.
+     */
+    @Nullable
+    public String getUsn() {
+        return mUsn;
+    }
+
+    /**
+     * Unique Device Name: the "uuid:..." part of the USN, shared by all the messages of a device.
+     */
+    @Nullable
+    public String getUdn() {
+        return udnOf(mUsn);
+    }
+
+    @Nullable
+    static String udnOf(@Nullable String usn) {
+        if (usn == null) {
+            return null;
+        }
+        int index = usn.indexOf("::");
+        return index == -1 ? usn : usn.substring(0, index);
+    }
+
+    /**
+     * BOOTID.UPNP.ORG header: changes each time the device reboots (UPnP 1.1).
+     */
+    @Nullable
+    public String getBootId() {
+        return mBootId;
+    }
+
+    /**
+     * CONFIGID.UPNP.ORG header: changes each time the description changes (UPnP 1.1).
+     */
+    @Nullable
+    public String getConfigId() {
+        return mConfigId;
+    }
+
+    /**
+     * @return a 64 bits id derived from the UDN of the device (or its LOCATION when it has none),
+     * the same for all the messages of the device
+     */
+    public long getStableId() {
+        String identity = getUdn();
+        if (identity == null) {
+            identity = mLocation.toExternalForm();
+        }
+        // 64 bits FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < identity.length(); i++) {
+            hash ^= identity.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    @NonNull
+    UPnPDescription getDescription() {
+        return mDescription;
+    }
+
+    /**
+     * @return true once the description of the device has been downloaded (or read from a cache)
+     */
+    public boolean hasDescription() {
+        return !mDescription.isEmpty();
+    }
+
     @SuppressWarnings("WeakerAccess")
     @Nullable
     public String getIconUrl() {
-        return mCachedIconUrl;
+        UPnPIcon[] icons = mDescription.mIcons;
+        return icons.length == 0 ? null : resolve(icons[0]);
+    }
+
+    /**
+     * @param size the size of the square the icon is displayed in, in pixels
+     * @return the URL of the icon fitting this size best, see {@link #getIcon(int)}
+     */
+    @Nullable
+    public String getIconUrl(int size) {
+        IconChoice choice = mIconChoice;
+        if (choice == null || choice.mSize != size) {
+            // Only the choice for the last size is kept: a list uses a single one
+            UPnPIcon icon = UPnPIcon.select(mDescription.mIcons, size);
+            choice = new IconChoice(size, icon == null ? null : resolve(icon));
+            mIconChoice = choice;
+        }
+        return choice.mUrl;
+    }
+
+    /**
+     * @return the smallest icon at least as large as the size, in the preferred format (PNG,
+     * then JPEG), or the largest one if none is large enough; null if the device has none
+     */
+    @Nullable
+    public UPnPIcon getIcon(int size) {
+        return UPnPIcon.select(mDescription.mIcons, size);
+    }
+
+    /**
+     * @return the icons of the device, in the order of its description
+     */
+    @NonNull
+    public List<UPnPIcon> getIcons() {
+        return Collections.unmodifiableList(Arrays.asList(mDescription.mIcons));
+    }
+
+    @NonNull
+    private String resolve(@NonNull UPnPIcon icon) {
+        String path = icon.getUrl();
+        if (path.startsWith("http://") || path.startsWith("https://")) {
+            return path;
+        }
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        return mLocation.getProtocol() + "://" + mLocation.getHost() + ":" + mLocation.getPort() + "/" + path;
     }
 
     @SuppressWarnings({"WeakerAccess", "SameParameterValue"})
     @NonNull
     public String getFriendlyName(@Nullable String defaultValue) {
-        String friendlyName = mProperties.get("xml_friendly_name");
-        // Special case for SONOS: remove the leading ip address from the friendly name
-        // "192.168.1.123 - Sonos PLAY:1" => "Sonos PLAY:1"
-        if (friendlyName != null && friendlyName.startsWith(getHost() + " - ")) {
-            friendlyName = friendlyName.substring(getHost().length() + 3);
-        }
+        String friendlyName = getDisplayName();
         return TextUtils.isEmpty(friendlyName) ?
                 (!TextUtils.isEmpty(defaultValue) ? defaultValue : "unknown")
                  : friendlyName;
     }
 
+    /**
+     * @return the friendly name, as displayed
+     */
+    @Nullable
+    String getDisplayName() {
+        String friendlyName = mDescription.mFriendlyName;
+        // Special case for SONOS: remove the leading ip address from the friendly name
+        // "192.168.1.123 - Sonos PLAY:1" => "Sonos PLAY:1"
+        String host = getHost();
+        if (friendlyName != null && friendlyName.length() >= host.length() + 3
+                && friendlyName.startsWith(host) && friendlyName.startsWith(" - ", host.length())) {
+            friendlyName = friendlyName.substring(host.length() + 3);
+        }
+        return friendlyName;
+    }
+
+    /**
+     * @return the texts displayed for this device, built on the first call
+     */
+    @NonNull
+    UPnPDeviceDisplay getDisplay() {
+        UPnPDeviceDisplay display = mDisplay;
+        if (display == null) {
+            // Built at most a few times, by racing threads: they are all equal
+            display = new UPnPDeviceDisplay(this);
+            mDisplay = display;
+        }
+        return display;
+    }
+
     @SuppressWarnings({"WeakerAccess", "SameParameterValue"})
     @NonNull
     public String getDeviceType(@Nullable String defaultValue) {
-        String deviceType = mProperties.get("xml_device_type");
+        String deviceType = mDescription.mDeviceType;
         return TextUtils.isEmpty(deviceType) ?
                 (!TextUtils.isEmpty(defaultValue) ? defaultValue : "unknown")
                 : deviceType;
@@ -125,7 +391,7 @@ public class UPnPDevice implements Serializable {
     @SuppressWarnings({"WeakerAccess", "SameParameterValue"})
     @NonNull
     public String getManufacturer(@Nullable String defaultValue) {
-        String manufacturer = mProperties.get("xml_manufacturer");
+        String manufacturer = mDescription.mManufacturer;
         return TextUtils.isEmpty(manufacturer) ?
                 (!TextUtils.isEmpty(defaultValue) ? defaultValue : "unknown")
                 : manufacturer;
@@ -134,13 +400,13 @@ public class UPnPDevice implements Serializable {
     @SuppressWarnings({"WeakerAccess", "SameParameterValue"})
     @Nullable
     public String getManufacturerUrl() {
-        return mProperties.get("xml_manufacturer_url");
+        return mDescription.mManufacturerUrl;
     }
 
     @SuppressWarnings({"WeakerAccess", "SameParameterValue"})
     @NonNull
     public String getModelName(@Nullable String defaultValue) {
-        String modelName = mProperties.get("xml_model_name");
+        String modelName = mDescription.mModelName;
         return TextUtils.isEmpty(modelName) ?
                 (!TextUtils.isEmpty(defaultValue) ? defaultValue : "unknown")
                 : modelName;
@@ -160,6 +426,7 @@ public class UPnPDevice implements Serializable {
                 ", host: " + getHost() +
                 ", port: " + getPort() +
                 ", inetAddr: " + inetAddr +
+                ", networkInterface: " + getNetworkInterface() +
                 ", location: " + getLocation() +
                 ", iconUrl: " + getIconUrl() +
                 ", deviceType: " + getDeviceType(null) +
@@ -172,15 +439,50 @@ public class UPnPDevice implements Serializable {
     // UPnP Response Parsing
     ////////////////////////////////////////////////////////////////////////////////
 
+    @Nullable
     public static UPnPDevice parse(@NonNull String raw) {
-        HashMap<String, String> parsed = parseRaw(raw);
+        byte[] data = raw.getBytes(UTF_8);
+        return fromHeaders(UPnPHeaderParser.parse(data, 0, data.length), null, data);
+    }
+
+    /**
+     * Parses an SSDP message straight from the received datagram.
+     * The raw message is not kept.
+     */
+    @Nullable
+    static UPnPDevice parse(@NonNull byte[] data, int offset, int length) {
+        return fromHeaders(UPnPHeaderParser.parse(data, offset, length));
+    }
+
+    @Nullable
+    static UPnPDevice fromHeaders(@NonNull HashMap<String, String> parsed) {
+        return fromHeaders(parsed, null, null);
+    }
+
+    /**
+     * @param parsed           the headers of an SSDP message, as returned by {@link UPnPHeaderParser}
+     * @param networkInterface the name of the interface the message was received on
+     * @param raw              the message in UTF-8, to keep it
+     * @return null if the message has no valid LOCATION (M-SEARCH, ssdp:byebye...)
+     */
+    @Nullable
+    static UPnPDevice fromHeaders(@NonNull HashMap<String, String> parsed,
+                                  @Nullable String networkInterface,
+                                  @Nullable byte[] raw) {
+        String location = parsed.get(UPnPHeaderParser.KEY_LOCATION);
+        if (location == null) {
+            return null;
+        }
         try {
-            UPnPDevice device = new UPnPDevice();
-            device.mRawUPnP = raw;
-            device.mProperties = parsed;
-            device.mLocation = new URL(parsed.get("upnp_location"));
-            device.mServer = parsed.get("upnp_server");
-            return device;
+            return create(new URL(location),
+                    parsed.get(UPnPHeaderParser.KEY_SERVER),
+                    parsed.get(UPnPHeaderParser.KEY_USN),
+                    parsed.get(UPnPHeaderParser.KEY_BOOTID),
+                    parsed.get(UPnPHeaderParser.KEY_CONFIGID),
+                    parseMaxAge(parsed.get(UPnPHeaderParser.KEY_CACHE_CONTROL)),
+                    networkInterface,
+                    UPnPDescription.EMPTY,
+                    raw);
 
         } catch (MalformedURLException e) {
             Log.e(TAG, "parse.MalformedURLException: ", e);
@@ -188,68 +490,166 @@ public class UPnPDevice implements Serializable {
         }
     }
 
-    private static HashMap<String, String> parseRaw(String raw) {
-        HashMap<String, String> results = new HashMap<>();
-        for (String line : raw.split("\r\n")) {
-            int colon = line.indexOf(":");
-            if (colon != -1) {
-                String key = line.substring(0, colon).trim().toLowerCase();
-                String value = line.substring(colon + 1).trim();
-                results.put("upnp_" + key, value);
-            }
-        }
-        return results;
+    /**
+     * Creates a device from its fields, pooling the shared values.
+     */
+    @NonNull
+    static UPnPDevice create(@NonNull URL location,
+                             @Nullable String server,
+                             @Nullable String usn,
+                             @Nullable String bootId,
+                             @Nullable String configId,
+                             int maxAge,
+                             @Nullable String networkInterface,
+                             @NonNull UPnPDescription description,
+                             @Nullable byte[] raw) {
+        return new UPnPDevice(location,
+                UPnPSortKey.of(location),
+                UPnPStrings.intern(server),
+                usn,
+                UPnPStrings.intern(bootId),
+                UPnPStrings.intern(configId),
+                maxAge,
+                UPnPStrings.intern(networkInterface),
+                description,
+                raw);
+    }
+
+    /**
+     * @return a copy of this device, with the fields of its description
+     */
+    @NonNull
+    UPnPDevice withDescription(@NonNull UPnPDescription description) {
+        return new UPnPDevice(mLocation, mSortKey, mServer, mUsn, mBootId, mConfigId, mMaxAge,
+                mNetworkInterface, description, mRawUPnP);
     }
 
     ////////////////////////////////////////////////////////////////////////////////
-    // UPnP Specification Downloading / Parsing
+    // Serialization
     ////////////////////////////////////////////////////////////////////////////////
 
-    private transient final OkHttpClient mClient = new OkHttpClient();
+    /**
+     * Serialized with {@link UPnPDeviceCodec}, not field by field.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new SerializedForm(UPnPDeviceCodec.encode(this));
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("SerializedForm required");
+    }
+
+    private static class SerializedForm implements Serializable {
+
+        private static final long serialVersionUID = 1L;
 
-    void downloadSpecs() throws Exception {
-        Request request = new Request.Builder()
-                .url(mLocation)
-                .build();
+        @NonNull
+        private final byte[] mEncoded;
 
-        Response response = mClient.newCall(request).execute();
-        if (!response.isSuccessful()) {
-            throw new IOException("Unexpected code " + response);
+        SerializedForm(@NonNull byte[] encoded) {
+            this.mEncoded = encoded;
         }
 
-        ResponseBody body = response.body();
+        private Object readResolve() throws ObjectStreamException {
+            try {
+                return UPnPDeviceCodec.decodeDevice(mEncoded);
+            } catch (IOException e) {
+                throw new InvalidObjectException(e.getMessage());
+            }
+        }
+    }
 
-        mRawXml = (body == null) ? "" : body.string();
+    /**
+     * The icon picked for a size.
+     */
+    private static class IconChoice {
 
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        DocumentBuilder db = dbf.newDocumentBuilder();
-        InputSource source = new InputSource(new StringReader(mRawXml));
-        Document doc;
-        try {
-            doc = db.parse(source);
-        } catch (SAXParseException e) {
-            return;
+        private final int mSize;
+
+        @Nullable
+        private final String mUrl;
+
+        IconChoice(int size, @Nullable String url) {
+            this.mSize = size;
+            this.mUrl = url;
         }
-        XPath xPath = XPathFactory.newInstance().newXPath();
+    }
 
-        mProperties.put("xml_friendly_name", xPath.compile("//friendlyName").evaluate(doc));
-        mProperties.put("xml_device_type", xPath.compile("//deviceType").evaluate(doc));
-        mProperties.put("xml_manufacturer", xPath.compile("//manufacturer").evaluate(doc));
-        mProperties.put("xml_manufacturer_url", xPath.compile("//manufacturerURL").evaluate(doc));
-        mProperties.put("xml_model_name", xPath.compile("//modelName").evaluate(doc));
+    ////////////////////////////////////////////////////////////////////////////////
+    // Footprint
+    ////////////////////////////////////////////////////////////////////////////////
 
-        mProperties.put("xml_icon_url", xPath.compile("//icon/url").evaluate(doc));
-        generateIconUrl();
+    /**
+     * @return the approximate heap size of this device, in bytes, not counting the values
+     * shared with other devices
+     */
+    public int getFootprint() {
+        return OBJECT_SIZE + 11 * REFERENCE_SIZE + 4
+                + URL_SIZE + sizeOf(mLocation.getHost()) + sizeOf(mLocation.getAuthority()) + sizeOf(mLocation.getFile())
+                + mSortKey.getFootprint()
+                + sizeOf(mServer) + sizeOf(mUsn) + sizeOf(mBootId) + sizeOf(mConfigId) + sizeOf(mNetworkInterface)
+                + (mDescription.isEmpty() ? 0 : mDescription.getFootprint())
+                + (mRawUPnP == null ? 0 : 16 + ((mRawUPnP.length + 7) & ~7));
     }
 
-    private void generateIconUrl() {
-        String path = mProperties.get("xml_icon_url");
-        if (TextUtils.isEmpty(path)) {
-            return;
+    /**
+     * @return the approximate heap size of the devices, in bytes
+     */
+    public static long getFootprint(@NonNull Collection<UPnPDevice> devices) {
+        long footprint = 0;
+        for (UPnPDevice device : devices) {
+            footprint += device.getFootprint();
         }
-        if (path.startsWith("/")) {
-            path = path.substring(1);
+        return footprint;
+    }
+
+    static int sizeOf(@Nullable String value) {
+        if (value == null || UPnPStrings.isPooled(value)) {
+            return 0;
         }
-        mCachedIconUrl = mLocation.getProtocol() + "://" + mLocation.getHost() + ":" + mLocation.getPort() + "/" + path;
+        // The String and its char array, 8 bytes aligned
+        return STRING_SIZE + ((value.length() * 2 + 7) & ~7);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // UPnP Specification Downloading / Parsing
+    ////////////////////////////////////////////////////////////////////////////////
+
+    private static final UPnPTransport.BodyReader<UPnPDescription> DESCRIPTION_READER =
+            new UPnPTransport.BodyReader<UPnPDescription>() {
+                @NonNull
+                @Override
+                public UPnPDescription read(@Nullable ResponseBody body) throws Exception {
+                    if (body == null) {
+                        return UPnPDescription.EMPTY;
+                    }
+                    MediaType contentType = body.contentType();
+                    Charset charset = contentType == null ? null : contentType.charset();
+                    try {
+                        return UPnPDescriptionParser.parse(body.byteStream(),
+                                charset == null ? null : charset.name());
+                    } catch (XmlPullParserException e) {
+                        Log.w(TAG, "downloadSpecs.XmlPullParserException: " + e.getMessage());
+                        return UPnPDescription.EMPTY;
+                    }
+                }
+            };
+
+    /**
+     * @return the description of this device
+     */
+    @NonNull
+    UPnPDescription downloadSpecs(@NonNull UPnPTransport transport) throws Exception {
+        return downloadSpecs(transport, null);
+    }
+
+    /**
+     * @param session the session owning the download, if any
+     * @return the description of this device, see {@link #withDescription(UPnPDescription)}
+     */
+    @NonNull
+    UPnPDescription downloadSpecs(@NonNull UPnPTransport transport,
+                                  @Nullable UPnPScanSession session) throws Exception {
+        return transport.fetch(mLocation, DESCRIPTION_READER, session);
     }
 }
@@ -16,12 +16,13 @@
 
 package com.dgmltn.upnpbrowser;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
+import androidx.annotation.CallSuper;
 import androidx.annotation.Dimension;
 import androidx.annotation.DrawableRes;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.UiThread;
 import androidx.appcompat.widget.AppCompatImageView;
 import androidx.recyclerview.widget.RecyclerView;
 
@@ -35,12 +36,32 @@ import com.squareup.picasso.Picasso;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Locale;
+import java.util.HashMap;
+import java.util.List;
 
 public abstract class UPnPDeviceAdapter<VH extends RecyclerView.ViewHolder> extends RecyclerView.Adapter<VH> {
 
+    // Change payloads, passed to onBindViewHolder(VH, int, List<Object>) when a device is updated
+    public static final int CHANGED_NAME = 1;
+    public static final int CHANGED_ICON = 1 << 1;
+    public static final int CHANGED_LOCATION = 1 << 2;
+    public static final int CHANGED_DETAILS = 1 << 3;
+    public static final int CHANGED_ALL = CHANGED_NAME | CHANGED_ICON | CHANGED_LOCATION | CHANGED_DETAILS;
+
+    /**
+     * Told when a row shows a device published without its description.
+     */
+    public interface OnDescriptionNeededListener {
+
+        @UiThread
+        void onDescriptionNeeded(@NonNull UPnPDevice device);
+    }
+
     private Comparator<UPnPDevice> mComparator = new UPnPDeviceComparator();
 
+    @Nullable
+    private OnDescriptionNeededListener mOnDescriptionNeededListener;
+
     @NonNull
     private Context mContext;
 
@@ -53,6 +74,10 @@ public abstract class UPnPDeviceAdapter<VH extends RecyclerView.ViewHolder> exte
     @NonNull
     private ArrayList<UPnPDevice> mItems;
 
+    // Size of the icons in the rows, 0 until known
+    @Dimension
+    private int mIconSize;
+
     public UPnPDeviceAdapter(@NonNull Context context) {
         mContext = context;
         mItems = new ArrayList<>();
@@ -61,7 +86,7 @@ public abstract class UPnPDeviceAdapter<VH extends RecyclerView.ViewHolder> exte
         mPicasso = Picasso.get();
         mPicasso.setIndicatorsEnabled(false);
 
-        setHasStableIds(false);
+        setHasStableIds(true);
     }
 
     public Context getContext() {
@@ -83,6 +108,56 @@ public abstract class UPnPDeviceAdapter<VH extends RecyclerView.ViewHolder> exte
         return mItems.get(position);
     }
 
+    /**
+     * @return a copy of the devices of the list, in order: they can be saved with
+     * {@link UPnPDeviceCodec} and restored with {@link #addItems(List)}
+     */
+    @NonNull
+    public List<UPnPDevice> getItems() {
+        return new ArrayList<>(mItems);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mItems.get(position).getStableId();
+    }
+
+    public void setOnDescriptionNeededListener(@Nullable OnDescriptionNeededListener listener) {
+        mOnDescriptionNeededListener = listener;
+    }
+
+    /**
+     * Requests the description of the device of the row, if it has none yet.
+     * Subclasses overriding this method must call through to super.
+     */
+    @CallSuper
+    @Override
+    public void onViewAttachedToWindow(@NonNull VH holder) {
+        super.onViewAttachedToWindow(holder);
+        int position = holder.getAdapterPosition();
+        if (mOnDescriptionNeededListener != null && position >= 0 && position < mItems.size()) {
+            UPnPDevice device = mItems.get(position);
+            if (!device.hasDescription()) {
+                mOnDescriptionNeededListener.onDescriptionNeeded(device);
+            }
+        }
+    }
+
+    /**
+     * @return what has changed in the device bound with these payloads (CHANGED_* flags),
+     * {@link #CHANGED_ALL} for a full bind
+     */
+    public static int getChanges(@NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            return CHANGED_ALL;
+        }
+        int changes = 0;
+        for (Object payload : payloads) {
+            changes |= (payload instanceof Integer) ? (Integer) payload : CHANGED_ALL;
+        }
+        return changes;
+    }
+
     public void clear() {
         int count = mItems.size();
         mItems.clear();
@@ -90,70 +165,229 @@ public abstract class UPnPDeviceAdapter<VH extends RecyclerView.ViewHolder> exte
     }
 
     public void addItem(@NonNull UPnPDevice item) {
-        int index = Collections.binarySearch(mItems, item, mComparator);
-        if (index < 0) {
-            int position = -index - 1;
-            mItems.add(position, item);
-            notifyItemInserted(position);
-        } else {
-            mItems.set(index, item);
-            notifyItemChanged(index);
+        addItems(Collections.singletonList(item));
+    }
+
+    /**
+     * Merges a batch of devices into the list, notifying each range of inserted rows once.
+     *
+     * @param items the devices, sorted with the order of the list and without duplicates
+     */
+    public void addItems(@NonNull List<UPnPDevice> items) {
+        prefetchIcons(items);
+        items = moveRelocatedItems(items);
+        if (items.isEmpty()) {
+            return;
+        }
+        ArrayList<UPnPDevice> merged = new ArrayList<>(mItems.size() + items.size());
+        // Changed rows, as [position, changes] pairs in the merged list
+        ArrayList<int[]> changed = new ArrayList<>();
+        // Ranges of inserted rows, as [start, count] pairs in the merged list
+        ArrayList<int[]> inserted = new ArrayList<>();
+
+        int i = 0;
+        int j = 0;
+        while (i < mItems.size() || j < items.size()) {
+            int compare = (i == mItems.size()) ? 1
+                    : (j == items.size()) ? -1
+                    : mComparator.compare(mItems.get(i), items.get(j));
+            if (compare < 0) {
+                merged.add(mItems.get(i++));
+            } else if (compare == 0) {
+                int changes = diff(mItems.get(i++), items.get(j));
+                if (changes != 0) {
+                    changed.add(new int[]{merged.size(), changes});
+                }
+                merged.add(items.get(j++));
+            } else {
+                int position = merged.size();
+                int[] last = inserted.isEmpty() ? null : inserted.get(inserted.size() - 1);
+                if (last != null && last[0] + last[1] == position) {
+                    last[1]++;
+                } else {
+                    inserted.add(new int[]{position, 1});
+                }
+                merged.add(items.get(j++));
+            }
         }
+        mItems = merged;
+
+        // Ascending order: each notification is relative to the rows already notified
+        int c = 0;
+        for (int[] range : inserted) {
+            while (c < changed.size() && changed.get(c)[0] < range[0]) {
+                notifyItemChanged(changed.get(c)[0], changed.get(c++)[1]);
+            }
+            notifyItemRangeInserted(range[0], range[1]);
+        }
+        while (c < changed.size()) {
+            notifyItemChanged(changed.get(c)[0], changed.get(c++)[1]);
+        }
+    }
+
+    /**
+     * Moves the rows of the devices that are already in the list under another LOCATION
+     * (the position of a device depends on its LOCATION, its id does not).
+     *
+     * @return the other devices
+     */
+    @NonNull
+    private List<UPnPDevice> moveRelocatedItems(@NonNull List<UPnPDevice> items) {
+        HashMap<Long, Integer> positions = null;
+        ArrayList<UPnPDevice> remaining = null;
+        for (int j = 0; j < items.size(); j++) {
+            UPnPDevice item = items.get(j);
+            Integer from = null;
+            if (Collections.binarySearch(mItems, item, mComparator) < 0) {
+                // New LOCATION: new device, or known device that has moved
+                if (positions == null) {
+                    positions = new HashMap<>();
+                    for (int i = 0; i < mItems.size(); i++) {
+                        positions.put(mItems.get(i).getStableId(), i);
+                    }
+                }
+                from = positions.get(item.getStableId());
+            }
+            if (from == null) {
+                if (remaining != null) {
+                    remaining.add(item);
+                }
+                continue;
+            }
+
+            UPnPDevice previous = mItems.remove((int) from);
+            int to = -Collections.binarySearch(mItems, item, mComparator) - 1;
+            mItems.add(to, item);
+            notifyItemMoved(from, to);
+            notifyItemChanged(to, diff(previous, item) | CHANGED_LOCATION);
+
+            if (remaining == null) {
+                remaining = new ArrayList<>(items.subList(0, j));
+            }
+            // The positions have shifted
+            positions = null;
+        }
+        return remaining == null ? items : remaining;
+    }
+
+    /**
+     * @return the CHANGED_* flags of what differs between two versions of a device
+     */
+    static int diff(@NonNull UPnPDevice previous, @NonNull UPnPDevice device) {
+        int changes = 0;
+        if (!equals(previous.getFriendlyName(null), device.getFriendlyName(null))) {
+            changes |= CHANGED_NAME;
+        }
+        if (!previous.getIcons().equals(device.getIcons())) {
+            changes |= CHANGED_ICON;
+        }
+        // (URL.equals() would resolve the host names)
+        if (!previous.getLocation().toExternalForm().equals(device.getLocation().toExternalForm())) {
+            changes |= CHANGED_LOCATION;
+        }
+        if (!equals(previous.getManufacturer(null), device.getManufacturer(null))
+                || !equals(previous.getModelName(null), device.getModelName(null))
+                || !equals(previous.getDeviceType(null), device.getDeviceType(null))
+                || !equals(previous.getManufacturerUrl(), device.getManufacturerUrl())
+                || !equals(previous.getServer(), device.getServer())) {
+            changes |= CHANGED_DETAILS;
+        }
+        return changes;
+    }
+
+    private static boolean equals(@Nullable Object lhs, @Nullable Object rhs) {
+        return lhs == null ? rhs == null : lhs.equals(rhs);
     }
 
+    /**
+     * Removes the device with the given Unique Service Name (or Unique Device Name), if any.
+     */
+    public void removeItem(@NonNull String usn) {
+        String udn = UPnPDevice.udnOf(usn);
+        for (int i = 0; i < mItems.size(); i++) {
+            if (udn.equals(mItems.get(i).getUdn())) {
+                mItems.remove(i);
+                notifyItemRemoved(i);
+                return;
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // Binding: the texts are built once per device, see UPnPDeviceDisplay
+    ////////////////////////////////////////////////////////////////////////////////
+
     public void setName(@NonNull TextView textView,
                         @NonNull UPnPDevice device,
                         @Nullable String defaultValue) {
-        textView.setText(device.getFriendlyName(defaultValue));
+        textView.setText(orDefault(device.getDisplay().mName, defaultValue));
     }
 
     public void setManufacturer(@NonNull TextView textView,
                                 @NonNull UPnPDevice device,
                                 @Nullable String defaultValue) {
-        textView.setText(device.getManufacturer(defaultValue));
+        textView.setText(orDefault(device.getDisplay().mManufacturer, defaultValue));
     }
 
     public void setHost(@NonNull TextView textView,
                         @NonNull UPnPDevice device) {
-        textView.setText(device.getHost());
+        textView.setText(device.getDisplay().mHost);
     }
 
     public void setHostAndPort(@NonNull TextView textView,
                                @NonNull UPnPDevice device) {
-        textView.setText(String.format(Locale.getDefault(),
-                "%s (%d)", device.getHost(), device.getPort()));
+        textView.setText(device.getDisplay().mHostAndPort);
     }
 
-    @SuppressLint("SetTextI18n")
     public void setLocation(@NonNull TextView textView,
                             @NonNull UPnPDevice device) {
-        if (device.getLocation() == null) {
-            textView.setText(getContext().getString(R.string.upnp_parameter_default_value));
-            return;
+        textView.setText(device.getDisplay().mLocation);
+        if (!(textView.getMovementMethod() instanceof LinkMovementMethod)) {
+            textView.setMovementMethod(LinkMovementMethod.getInstance());
         }
-        String loc = device.getLocation().toExternalForm()
-                // Uncomment to obscure actual ip addresses for screenshots
-                // .replaceAll("[0-9]+\\.[0-9]+\\.[0-9]+", "192.258.1")
-                ;
-        linkify(textView, loc);
     }
 
-    private void linkify(@NonNull TextView textView,
-                         @Nullable String url) {
-        if (TextUtils.isEmpty(url)) {
+    /**
+     * Sets the size of the icons in the rows, for the icons of the devices added to be
+     * downloaded before they are displayed. Otherwise, the size passed to
+     * {@link #setIcon(AppCompatImageView, UPnPDevice, int)} is used once known.
+     */
+    public void setIconSize(@Dimension int size) {
+        mIconSize = size;
+    }
+
+    /**
+     * Downloads and decodes the icons of the devices at the size of the rows, in the
+     * background, so that they are in the memory cache when the rows are bound.
+     */
+    private void prefetchIcons(@NonNull List<UPnPDevice> devices) {
+        if (mIconSize <= 0) {
             return;
         }
-
-        SpannableBuilder builder = new SpannableBuilder(textView.getContext());
-        textView.setText(builder.build());
-        textView.setMovementMethod(LinkMovementMethod.getInstance());
+        for (UPnPDevice device : devices) {
+            String iconUrl = device.getIconUrl(mIconSize);
+            if (iconUrl != null) {
+                // The same request as setIcon(), for the same cache key
+                mPicasso.load(iconUrl)
+                        .resize(mIconSize, mIconSize)
+                        .centerInside()
+                        .priority(Picasso.Priority.LOW)
+                        .fetch();
+            }
+        }
     }
 
+    /**
+     * Displays the icon of the device that fits the size best (see {@link UPnPDevice#getIcon(int)}),
+     * or the default icon.
+     */
     public void setIcon(@NonNull AppCompatImageView imageView,
                         @NonNull UPnPDevice device,
                         @Dimension int size) {
-        if (!TextUtils.isEmpty(device.getIconUrl())) {
-            mPicasso.load(device.getIconUrl())
+        mIconSize = size;
+        String iconUrl = device.getIconUrl(size);
+        if (iconUrl != null) {
+            mPicasso.load(iconUrl)
                     .error(getDefaultIcon())
                     .resize(size, size)
                     .centerInside()
@@ -164,6 +398,14 @@ public abstract class UPnPDeviceAdapter<VH extends RecyclerView.ViewHolder> exte
         }
     }
 
+    @NonNull
+    private static String orDefault(@Nullable String value, @Nullable String defaultValue) {
+        if (value != null) {
+            return value;
+        }
+        return !TextUtils.isEmpty(defaultValue) ? defaultValue : "unknown";
+    }
+
     /////////////////
     // ABSTRACTION //
     /////////////////
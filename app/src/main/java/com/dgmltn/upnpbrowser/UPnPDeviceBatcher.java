@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.UiThread;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Gathers the devices found (and lost) during a short window, and hands them to the
+ * main thread all at once.
+ * <p>
+ * The devices are collected from the threads that found them, already sorted and
+ * deduplicated, so that the main thread only has to merge one sorted batch into the
+ * list and notify each range of inserted rows once, instead of doing one insertion
+ * and one layout pass per device during a storm of responses.
+ */
+class UPnPDeviceBatcher {
+
+    // About one frame
+    static final long DEFAULT_WINDOW_MS = 16;
+
+    interface Listener {
+
+        /**
+         * @param removed the USNs of the devices lost during the window
+         * @param found   the devices found during the window, sorted
+         */
+        @UiThread
+        void onBatch(@NonNull List<String> removed, @NonNull List<UPnPDevice> found);
+    }
+
+    private final Comparator<UPnPDevice> mComparator = new UPnPDeviceComparator();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    @NonNull
+    private final Listener mListener;
+
+    private volatile long mWindowMs = DEFAULT_WINDOW_MS;
+
+    private ArrayList<UPnPDevice> mFound = new ArrayList<>();
+    private ArrayList<String> mRemoved = new ArrayList<>();
+    private boolean mScheduled;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    UPnPDeviceBatcher(@NonNull Listener listener) {
+        this.mListener = listener;
+    }
+
+    /**
+     * @param windowMs how long the devices are gathered before being handed over,
+     *                 or 0 to hand them over as soon as the main thread is free
+     */
+    void setWindowMs(long windowMs) {
+        mWindowMs = windowMs;
+    }
+
+    @AnyThread
+    synchronized void add(@NonNull UPnPDevice device) {
+        int index = Collections.binarySearch(mFound, device, mComparator);
+        if (index >= 0) {
+            // The latest version of the device wins
+            mFound.set(index, device);
+        } else {
+            mFound.add(-index - 1, device);
+        }
+        schedule();
+    }
+
+    @AnyThread
+    synchronized void remove(@NonNull String usn) {
+        // Forget the device if it has only been found during this window
+        String udn = UPnPDevice.udnOf(usn);
+        for (int i = mFound.size() - 1; i >= 0; i--) {
+            if (udn.equals(mFound.get(i).getUdn())) {
+                mFound.remove(i);
+            }
+        }
+        mRemoved.add(usn);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(mFlush, mWindowMs);
+        }
+    }
+
+    /**
+     * Hands the pending devices over right now.
+     */
+    @UiThread
+    void flush() {
+        List<UPnPDevice> found;
+        List<String> removed;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlush);
+            found = mFound;
+            removed = mRemoved;
+            mFound = new ArrayList<>();
+            mRemoved = new ArrayList<>();
+            mScheduled = false;
+        }
+        if (!found.isEmpty() || !removed.isEmpty()) {
+            mListener.onBatch(removed, found);
+        }
+    }
+}
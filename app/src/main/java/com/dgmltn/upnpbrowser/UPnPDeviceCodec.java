@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compact binary form of the devices, to save them across process death or hand them
+ * over to another component.
+ * <p>
+ * Each distinct string is written once per stream and then referred to by index: the
+ * SERVER, manufacturer or model of a thousand devices of the same kind cost a few bytes
+ * each. Nothing is written by reflection, and the SSDP messages, when retained, are
+ * copied as is and only decoded when asked for.
+ * <pre>
+ * version:u8 count:varint device*
+ * device: flags:u8 location:str server:str usn:str bootId:str configId:str maxAge:varint
+ *         interface:str [friendlyName:str deviceType:str manufacturer:str
+ *         manufacturerUrl:str modelName:str icons] [raw:varint bytes]
+ * icons:  count:varint (mimeType:str width:varint height:varint depth:varint url:str)*
+ *         (version 1: iconPath:str)
+ * str:    0 (null) | 1 length:varint utf8 (new string) | index + 2 (string already written)
+ * </pre>
+ */
+public final class UPnPDeviceCodec {
+
+    /**
+     * Version of the encoding. The streams written by a previous version can be read,
+     * the ones written by a later version are rejected.
+     */
+    public static final int VERSION = 2;
+
+    private static final int FLAG_DESCRIPTION = 1;
+    private static final int FLAG_RAW = 1 << 1;
+
+    private static final int REF_NULL = 0;
+    private static final int REF_NEW = 1;
+    private static final int REF_INDEX = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private UPnPDeviceCodec() {
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // Encoding
+    ////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes the devices to the stream, which is flushed but not closed.
+     */
+    public static void write(@NonNull OutputStream out, @NonNull Collection<UPnPDevice> devices) throws IOException {
+        DataOutputStream data = new DataOutputStream(out instanceof ByteArrayOutputStream
+                || out instanceof BufferedOutputStream ? out : new BufferedOutputStream(out));
+        Writer writer = new Writer(data);
+        data.writeByte(VERSION);
+        writer.writeVarint(devices.size());
+        for (UPnPDevice device : devices) {
+            writer.writeDevice(device);
+        }
+        data.flush();
+    }
+
+    @NonNull
+    public static byte[] encode(@NonNull Collection<UPnPDevice> devices) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + devices.size() * 128);
+        try {
+            write(out, devices);
+        } catch (IOException e) {
+            // Never thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    @NonNull
+    public static byte[] encode(@NonNull UPnPDevice device) {
+        return encode(Collections.singletonList(device));
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // Decoding
+    ////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads devices written by {@link #write(OutputStream, Collection)}. The stream is not
+     * closed, nor read past the end of the devices. It is read a few bytes at a time:
+     * wrap a file or socket stream in a {@link java.io.BufferedInputStream} beforehand
+     * (which then reads ahead).
+     *
+     * @throws IOException if the stream is truncated, corrupted or written by another version
+     */
+    @NonNull
+    public static List<UPnPDevice> read(@NonNull InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int version = data.readUnsignedByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("unsupported version " + version);
+        }
+        Reader reader = new Reader(data, version);
+        int count = reader.readVarint();
+        ArrayList<UPnPDevice> devices = new ArrayList<>(Math.min(count, 4096));
+        for (int i = 0; i < count; i++) {
+            devices.add(reader.readDevice());
+        }
+        return devices;
+    }
+
+    @NonNull
+    public static List<UPnPDevice> decode(@NonNull byte[] encoded) throws IOException {
+        return read(new ByteArrayInputStream(encoded));
+    }
+
+    @NonNull
+    public static UPnPDevice decodeDevice(@NonNull byte[] encoded) throws IOException {
+        List<UPnPDevice> devices = decode(encoded);
+        if (devices.size() != 1) {
+            throw new IOException(devices.size() + " devices, expected 1");
+        }
+        return devices.get(0);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // Writer
+    ////////////////////////////////////////////////////////////////////////////////
+
+    private static class Writer {
+
+        @NonNull
+        private final DataOutputStream mOut;
+
+        // Index of the strings already written
+        private final HashMap<String, Integer> mStrings = new HashMap<>();
+
+        Writer(@NonNull DataOutputStream out) {
+            this.mOut = out;
+        }
+
+        void writeDevice(@NonNull UPnPDevice device) throws IOException {
+            UPnPDescription description = device.getDescription();
+            byte[] raw = device.getRawBytes();
+            int flags = (description.isEmpty() ? 0 : FLAG_DESCRIPTION) | (raw == null ? 0 : FLAG_RAW);
+
+            mOut.writeByte(flags);
+            writeString(device.getLocation().toExternalForm());
+            writeString(device.getServer());
+            writeString(device.getUsn());
+            writeString(device.getBootId());
+            writeString(device.getConfigId());
+            // -1 when missing
+            writeVarint(device.getMaxAge() + 1);
+            writeString(device.getNetworkInterface());
+            if (!description.isEmpty()) {
+                writeString(description.mFriendlyName);
+                writeString(description.mDeviceType);
+                writeString(description.mManufacturer);
+                writeString(description.mManufacturerUrl);
+                writeString(description.mModelName);
+                writeVarint(description.mIcons.length);
+                for (UPnPIcon icon : description.mIcons) {
+                    writeString(icon.getMimeType());
+                    writeVarint(icon.getWidth());
+                    writeVarint(icon.getHeight());
+                    writeVarint(icon.getDepth());
+                    writeString(icon.getUrl());
+                }
+            }
+            if (raw != null) {
+                writeVarint(raw.length);
+                mOut.write(raw);
+            }
+        }
+
+        void writeString(@Nullable String value) throws IOException {
+            if (value == null) {
+                writeVarint(REF_NULL);
+                return;
+            }
+            Integer index = mStrings.get(value);
+            if (index != null) {
+                writeVarint(REF_INDEX + index);
+                return;
+            }
+            mStrings.put(value, mStrings.size());
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarint(REF_NEW);
+            writeVarint(bytes.length);
+            mOut.write(bytes);
+        }
+
+        void writeVarint(int value) throws IOException {
+            while ((value & ~0x7f) != 0) {
+                mOut.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mOut.writeByte(value);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // Reader
+    ////////////////////////////////////////////////////////////////////////////////
+
+    private static class Reader {
+
+        @NonNull
+        private final DataInputStream mIn;
+
+        private final int mVersion;
+
+        private final ArrayList<String> mStrings = new ArrayList<>();
+
+        Reader(@NonNull DataInputStream in, int version) {
+            this.mIn = in;
+            this.mVersion = version;
+        }
+
+        @NonNull
+        UPnPDevice readDevice() throws IOException {
+            int flags = mIn.readUnsignedByte();
+            String location = readString();
+            if (location == null) {
+                throw new IOException("device without location");
+            }
+            String server = readString();
+            String usn = readString();
+            String bootId = readString();
+            String configId = readString();
+            int maxAge = readVarint() - 1;
+            String networkInterface = readString();
+
+            UPnPDescription description = UPnPDescription.EMPTY;
+            if ((flags & FLAG_DESCRIPTION) != 0) {
+                description = UPnPDescription.of(readString(), readString(), readString(),
+                        readString(), readString(), readIcons());
+            }
+
+            byte[] raw = null;
+            if ((flags & FLAG_RAW) != 0) {
+                raw = new byte[readVarint()];
+                mIn.readFully(raw);
+            }
+
+            return UPnPDevice.create(new URL(location), server, usn, bootId, configId, maxAge,
+                    networkInterface, description, raw);
+        }
+
+        @NonNull
+        UPnPIcon[] readIcons() throws IOException {
+            if (mVersion == 1) {
+                // Only the first icon, without its size
+                String path = readString();
+                return path == null ? UPnPDescription.NO_ICONS : new UPnPIcon[]{new UPnPIcon(null, 0, 0, 0, path)};
+            }
+            int count = readVarint();
+            ArrayList<UPnPIcon> icons = new ArrayList<>(Math.min(count, 64));
+            for (int i = 0; i < count; i++) {
+                String mimeType = readString();
+                int width = readVarint();
+                int height = readVarint();
+                int depth = readVarint();
+                String url = readString();
+                if (url == null) {
+                    throw new IOException("icon without url");
+                }
+                icons.add(new UPnPIcon(mimeType, width, height, depth, url));
+            }
+            return icons.toArray(new UPnPIcon[icons.size()]);
+        }
+
+        @Nullable
+        String readString() throws IOException {
+            int ref = readVarint();
+            if (ref == REF_NULL) {
+                return null;
+            }
+            if (ref == REF_NEW) {
+                byte[] bytes = new byte[readVarint()];
+                mIn.readFully(bytes);
+                String value = new String(bytes, UTF_8);
+                mStrings.add(value);
+                return value;
+            }
+            int index = ref - REF_INDEX;
+            if (index >= mStrings.size()) {
+                throw new IOException("invalid string reference " + index);
+            }
+            return mStrings.get(index);
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = mIn.readUnsignedByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        throw new IOException("invalid length " + value);
+                    }
+                    return value;
+                }
+            }
+            throw new IOException("invalid varint");
+        }
+    }
+}
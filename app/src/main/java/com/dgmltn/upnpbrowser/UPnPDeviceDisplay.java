@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.text.TextUtils;
+import android.text.style.URLSpan;
+
+import java.util.Locale;
+
+/**
+ * The texts displayed for a device, built once when the device is published (off the
+ * main thread), so that binding a row only assigns them.
+ */
+final class UPnPDeviceDisplay {
+
+    // Null when the device does not have them: the default value is chosen at bind time
+    @Nullable
+    final String mName;
+    @Nullable
+    final String mManufacturer;
+
+    @NonNull
+    final String mHost;
+    @NonNull
+    final String mHostAndPort;
+
+    // The LOCATION, as a link
+    @NonNull
+    final CharSequence mLocation;
+
+    @WorkerThread
+    UPnPDeviceDisplay(@NonNull UPnPDevice device) {
+        mName = emptyToNull(device.getDisplayName());
+        mManufacturer = emptyToNull(device.getDescription().mManufacturer);
+        mHost = device.getHost();
+        mHostAndPort = String.format(Locale.getDefault(), "%s (%d)", mHost, device.getPort());
+        mLocation = linkify(device.getLocation().toExternalForm()
+                // Uncomment to obscure actual ip addresses for screenshots
+                // .replaceAll("[0-9]+\\.[0-9]+\\.[0-9]+", "192.258.1")
+        );
+    }
+
+    @NonNull
+    private static CharSequence linkify(@NonNull String url) {
+        SpannableStringBuilder builder = new SpannableStringBuilder(url);
+        builder.setSpan(new URLSpan(url), 0, url.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        // Immutable: shared by all the rows showing the device
+        return new SpannedString(builder);
+    }
+
+    @Nullable
+    private static String emptyToNull(@Nullable String value) {
+        return TextUtils.isEmpty(value) ? null : value;
+    }
+}
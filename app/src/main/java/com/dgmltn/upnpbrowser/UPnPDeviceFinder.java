@@ -16,29 +16,41 @@
 
 package com.dgmltn.upnpbrowser;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import android.util.Log;
 
 import com.dgmltn.upnpbrowser.event.UPnPDeviceEvent;
+import com.dgmltn.upnpbrowser.event.UPnPDeviceRemovedEvent;
 import com.dgmltn.upnpbrowser.event.UPnPErrorEvent;
 import com.dgmltn.upnpbrowser.event.UPnPObserverEndedEvent;
 
 import org.greenrobot.eventbus.EventBus;
 
+import android.os.Build;
+import android.os.SystemClock;
+
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.MulticastSocket;
 import java.net.NetworkInterface;
-import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Pattern;
 
-import static com.dgmltn.upnpbrowser.event.UPnPErrorEvent.ERROR_NULL_SOCKET;
 import static com.dgmltn.upnpbrowser.event.UPnPErrorEvent.ERROR_OPEN_FAILED;
 
 /**
@@ -49,149 +61,783 @@ class UPnPDeviceFinder {
 
     private static final String TAG = "UPnPDeviceFinder";
 
-    private static final String MULTICAST_ADDRESS = "239.255.255.250";
-    private static final int PORT = 1900;
+    static final String MULTICAST_ADDRESS = "239.255.255.250";
+    static final String MULTICAST_ADDRESS_V6_LINK_LOCAL = "FF02::C";
+    static final String MULTICAST_ADDRESS_V6_SITE_LOCAL = "FF05::C";
+    static final int PORT = 1900;
+
+    static final String ROOT_DEVICE = "upnp:rootdevice";
+    static final String ALL = "ssdp:all";
+    private static final String NTS_BYEBYE = "ssdp:byebye";
 
     private static final int DEFAULT_MAX_REPLY_TIME_MS = (int)TimeUnit.SECONDS.toMillis(60);
 
+    static final int DEFAULT_MAX_DATAGRAM_SIZE = 2048;
+    // UDP over IPv4
+    private static final int MAX_UDP_PAYLOAD_SIZE = 65507;
+
+    // Datagrams waiting to be parsed: enough for a burst of replies from 500 devices
+    private static final int RECEIVE_RING_SLOTS = 512;
+
+    // The devices must re-announce themselves at least every 30 minutes by default
+    private static final long DEFAULT_MAX_AGE_MS = TimeUnit.MINUTES.toMillis(30);
+    private static final long LEASE_TICK_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final int LEASE_SLOT_COUNT = 512;
+
     private int mTimeoutMs;
 
-    // From Apache InetAddressUtils
-    // https://hc.apache.org/httpcomponents-client-ga/httpclient/apidocs/org/apache/http/conn/util/InetAddressUtils.html
-    private static final Pattern IPV4_PATTERN =
-            Pattern.compile("^(25[0-5]|2[0-4]\\d|[0-1]?\\d?\\d)(\\.(25[0-5]|2[0-4]\\d|[0-1]?\\d?\\d)){3}$");
+    private volatile boolean mDualStack;
+
+    private volatile boolean mContinuous;
+
+    @NonNull
+    private volatile String[] mSearchTargets = {ROOT_DEVICE};
+
+    @Nullable
+    private volatile UPnPSearchScheduler mScheduler;
+
+    private volatile long mQuietPeriodMs;
+
+    private volatile int mReceiveBufferSize;
+
+    private volatile int mMaxDatagramSize = DEFAULT_MAX_DATAGRAM_SIZE;
+
+    private volatile boolean mRetainRawMessages;
+
+    private volatile boolean mLazyDescriptions;
+
+    // Scan timings, on the SystemClock.elapsedRealtime() clock (written by the parsing
+    // thread only, read without locking by the reader loop)
+    private volatile long mStartMs;
+    private volatile long mFirstDeviceMs = -1;
+    private volatile long mLastDeviceMs = -1;
+    private volatile int mDeviceCount;
 
     private static final String NEWLINE = "\r\n";
 
-    private UPnPSocket mSock;
+    @Nullable
+    private UPnPChannels mChannels;
+
+    private volatile boolean mClosed;
+
+    @NonNull
+    private final UPnPFetchExecutor mFetchExecutor;
+
+    // Hosts already queued for download during this scan (parsing thread only)
+    private final Set<String> mSeenHosts = new HashSet<>();
+
+    private final UPnPResponseFilter mFilter = new UPnPResponseFilter();
+
+    // Leases of the devices found, by USN (parsing thread only)
+    private final UPnPLeaseWheel mLeases =
+            new UPnPLeaseWheel(LEASE_TICK_MS, LEASE_SLOT_COUNT, SystemClock.elapsedRealtime());
+    private final List<String> mExpiredLeases = new ArrayList<>();
+
+    @Nullable
+    private volatile UPnPDescriptionCache mDescriptionCache;
+
+    @NonNull
+    private final UPnPTransport mTransport;
+
+    // Where the results of this finder are posted
+    @NonNull
+    private final EventBus mEventBus;
+
+    // The downloads started by the observation, cancelled by close()
+    @NonNull
+    private final UPnPScanSession mSession = new UPnPScanSession();
 
     UPnPDeviceFinder() {
-        this(DEFAULT_MAX_REPLY_TIME_MS, true);
+        this(DEFAULT_MAX_REPLY_TIME_MS, UPnPFetchExecutor.getDefault(), UPnPTransport.getDefault());
     }
 
     UPnPDeviceFinder(int timeoutMs) {
-        this(timeoutMs, true);
+        this(timeoutMs, UPnPFetchExecutor.getDefault(), UPnPTransport.getDefault());
     }
 
-    private UPnPDeviceFinder(int timeoutMs, boolean IPV4) {
-        this.mTimeoutMs = timeoutMs;
+    UPnPDeviceFinder(int timeoutMs,
+                     @NonNull UPnPFetchExecutor fetchExecutor,
+                     @NonNull UPnPTransport transport) {
+        this(timeoutMs, fetchExecutor, transport, EventBus.getDefault());
+    }
 
-        InetAddress inetAddress = getDeviceLocalIP(IPV4);
-        Log.d(TAG, "inet device address is: " + inetAddress);
+    UPnPDeviceFinder(int timeoutMs,
+                     @NonNull UPnPFetchExecutor fetchExecutor,
+                     @NonNull UPnPTransport transport,
+                     @NonNull EventBus eventBus) {
+        this.mTimeoutMs = timeoutMs > 0 ? timeoutMs : DEFAULT_MAX_REPLY_TIME_MS;
+        this.mFetchExecutor = fetchExecutor;
+        this.mTransport = transport;
+        this.mEventBus = eventBus;
+    }
 
-        try {
-            mSock = new UPnPSocket(inetAddress);
-        } catch (IOException e) {
-            Log.w(TAG, "new UPnPSocket(): IOException: ", e);
-            EventBus.getDefault().post(new UPnPErrorEvent(ERROR_OPEN_FAILED, e.getMessage()));
+    /**
+     * Also searches the IPv6 SSDP groups (FF02::C and FF05::C), in parallel with IPv4.
+     */
+    void setDualStack(boolean dualStack) {
+        mDualStack = dualStack;
+    }
+
+    /**
+     * Keeps observing after the initial search, until {@link #close()}: the devices are
+     * then discovered from their NOTIFY announcements, without sending any M-SEARCH.
+     */
+    void setContinuous(boolean continuous) {
+        mContinuous = continuous;
+    }
+
+    /**
+     * Sets the search targets (ST) of the M-SEARCH messages, and the notification
+     * types (NT) of the announcements taken into account.
+     */
+    void setSearchTargets(@NonNull String... searchTargets) {
+        if (searchTargets.length == 0) {
+            throw new IllegalArgumentException("at least one search target is required");
         }
+        mSearchTargets = searchTargets.clone();
+    }
+
+    /**
+     * Ends the observation once no new device has been found for the given period,
+     * after the last search round. The timeout still applies. Ignored in continuous mode.
+     *
+     * @param quietPeriodMs the quiet period, or 0 to always wait for the timeout
+     */
+    void setQuietPeriod(long quietPeriodMs) {
+        mQuietPeriodMs = quietPeriodMs;
+    }
+
+    /**
+     * Sets the size of the kernel receive buffer (SO_RCVBUF) of the sockets.
+     *
+     * @param bytes the size, or 0 to keep the system default
+     */
+    void setReceiveBufferSize(int bytes) {
+        mReceiveBufferSize = bytes;
+    }
+
+    /**
+     * Sets the size above which the SSDP datagrams are truncated.
+     */
+    void setMaxDatagramSize(int bytes) {
+        mMaxDatagramSize = Math.max(512, Math.min(MAX_UDP_PAYLOAD_SIZE, bytes));
+    }
+
+    /**
+     * Keeps the SSDP message of each device, see {@link UPnPDevice#getRawUPnP()}.
+     */
+    void setRetainRawMessages(boolean retain) {
+        mRetainRawMessages = retain;
+    }
+
+    /**
+     * Publishes the devices from their SSDP headers only, without downloading their
+     * description (unless cached): see {@link UPnPDiscoveryEngine#requestDescription(UPnPDevice)}.
+     */
+    void setLazyDescriptions(boolean lazy) {
+        mLazyDescriptions = lazy;
     }
 
     void observe() {
-        if (mSock == null) {
-            EventBus.getDefault().post(new UPnPErrorEvent(ERROR_NULL_SOCKET, "null socket"));
+        UPnPChannels channels;
+        try {
+            channels = new UPnPChannels(mDualStack, mReceiveBufferSize);
+        } catch (IOException e) {
+            Log.w(TAG, "new UPnPChannels(): IOException: ", e);
+            mEventBus.post(new UPnPErrorEvent(ERROR_OPEN_FAILED, e.getMessage()));
             return;
         }
 
+        synchronized (this) {
+            mChannels = channels;
+        }
+
+        // The readers (this thread and the notify listener) only copy the datagrams
+        // into the ring: they are parsed on their own thread
+        int maxDatagramSize = mMaxDatagramSize;
+        final UPnPReceiveRing ring = new UPnPReceiveRing(RECEIVE_RING_SLOTS, maxDatagramSize);
+        Thread parser = startParser(ring);
+
+        UPnPNotifyListener listener = null;
+        boolean quiescent = false;
         try {
-            // Broadcast SSDP search messages
-            mSock.sendMulticastMsg();
+            if (mContinuous) {
+                listener = startNotifyListener(ring, maxDatagramSize);
+            }
+
+            // Broadcast SSDP search messages on every interface, in several rounds
+            long startMs = SystemClock.elapsedRealtime();
+            UPnPSearchScheduler scheduler = new UPnPSearchScheduler(
+                    (int) TimeUnit.MILLISECONDS.toSeconds(mTimeoutMs),
+                    UPnPSearchScheduler.DEFAULT_ROUNDS, startMs);
+            mStartMs = startMs;
+            mFirstDeviceMs = -1;
+            mLastDeviceMs = -1;
+            mDeviceCount = 0;
+            mScheduler = scheduler;
+
+            // Listen to responses from all the interfaces until the timeout
+            // (or until closed, in continuous mode). The loop takes no lock of the finder:
+            // whatever the parser does, the sockets keep being drained
+            // One more byte than the ring slots, for the ring to detect the truncated datagrams
+            ByteBuffer buffer = ByteBuffer.allocate(maxDatagramSize + 1);
+            long deadline = mContinuous ? Long.MAX_VALUE : SystemClock.elapsedRealtime() + mTimeoutMs + 1000;
+            while (!mClosed) {
+                long now = SystemClock.elapsedRealtime();
+                long remainingMs = deadline - now;
+                if (remainingMs <= 0) {
+                    break;
+                }
+
+                if (scheduler.isDue(now)) {
+                    sendSearch(channels, scheduler.startRound(now));
+                }
+
+                long quietMs = getQuietRemainingMs(scheduler, now);
+                if (quietMs <= 0) {
+                    quiescent = true;
+                    break;
+                }
 
-            // Listen to responses from network until the socket timeout
-            // noinspection InfiniteLoopStatement
-            while (true) {
                 Log.i(TAG, "UPnP.observe...");
+                int selected = channels.select(Math.max(1, Math.min(Math.min(remainingMs, quietMs),
+                        scheduler.getDelayMs(now))));
+                if (selected == 0) {
+                    continue;
+                }
+
+                Iterator<SelectionKey> keys = channels.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    Endpoint endpoint = (Endpoint) key.attachment();
+                    buffer.clear();
+                    while (channel.receive(buffer) != null) {
+                        buffer.flip();
+                        ring.offer(buffer.array(), buffer.arrayOffset(), buffer.limit(), endpoint.getInterface());
+                        buffer.clear();
+                    }
+                }
+            }
 
-                DatagramPacket dp = mSock.receiveMulticastMsg();
-                String receivedString = new String(dp.getData());
+        } catch (IOException e) {
+            Log.w(TAG, "observe.IOException: " + e.getMessage());
+
+        } finally {
+            if (listener != null) {
+                listener.close();
+            }
+            // Let the parser finish with the datagrams already received
+            ring.close();
+            try {
+                parser.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Log.i(TAG, "observe.pipeline (" + ring.getReceivedCount() + " datagrams received, "
+                    + ring.getOverflowCount() + " dropped, " + ring.getTruncatedCount() + " truncated, "
+                    + ring.getPeakCount() + " pending at most, " + ring.getAllocatedCount() + " buffers)");
+            if (ring.getTruncatedCount() > 0) {
+                Log.w(TAG, "observe: " + ring.getTruncatedCount() + " datagrams larger than "
+                        + maxDatagramSize + " bytes, see setMaxDatagramSize()");
+            }
+            Log.i(TAG, "observe.ended (" + (mScheduler == null ? 0 : mScheduler.getSentRounds()) + " search rounds, "
+                    + mFilter.getRepeatCount() + " repeated responses, "
+                    + mFilter.getCoalescedCount() + " coalesced downloads)");
+            synchronized (this) {
+                mChannels = null;
+            }
+            channels.close();
+
+            // The observation only ends once its last download has returned
+            final boolean ended = quiescent;
+            mSession.finish(new Runnable() {
+                @Override
+                public void run() {
+                    postEnded(ended, ring.getReceivedCount(), ring.getOverflowCount());
+                }
+            });
+        }
+    }
 
-                receivedString = receivedString.substring(0, dp.getLength());
-                Log.v(TAG, "UPnP.observe.device found: " + receivedString);
+    private void postEnded(boolean quiescent, int receivedCount, int droppedCount) {
+        long startMs = mStartMs;
+        long firstDeviceMs = mFirstDeviceMs;
+        long lastDeviceMs = mLastDeviceMs;
+        UPnPObserverEndedEvent event = new UPnPObserverEndedEvent(SystemClock.elapsedRealtime() - startMs,
+                firstDeviceMs < 0 ? -1 : firstDeviceMs - startMs,
+                lastDeviceMs < 0 ? -1 : lastDeviceMs - startMs,
+                mDeviceCount, quiescent, receivedCount, droppedCount,
+                mSession.isCancelled(), mSession.getCancelledCount());
+        Log.i(TAG, "observe.timings: first device after " + event.getTimeToFirstDeviceMs()
+                + "ms, last new device after " + event.getTimeToLastDeviceMs() + "ms"
+                + (event.isCancelled() ? ", " + event.getCancelledCount() + " downloads cancelled" : ""));
+        mEventBus.post(event);
+    }
+
+    /**
+     * Stops the observation: {@link #observe()} returns as soon as possible, the downloads
+     * still queued are dropped and the ones in flight are aborted. The end of the
+     * observation is posted once the last of them has returned.
+     */
+    void close() {
+        synchronized (this) {
+            mClosed = true;
+            if (mChannels != null) {
+                mChannels.wakeup();
+            }
+        }
+        // Out of the lock: the last download dropped may post the end of the observation
+        mSession.cancel();
+        int dropped = mFetchExecutor.cancel(mSession);
+        if (dropped > 0) {
+            Log.i(TAG, "close: " + dropped + " queued downloads dropped");
+        }
+    }
 
-                final UPnPDevice device = UPnPDevice.parse(receivedString);
+    @NonNull
+    private Thread startParser(@NonNull final UPnPReceiveRing ring) {
+        Thread thread = new Thread("UPnPParser") {
+            @Override
+            public void run() {
+                try {
+                    ring.drain(new UPnPReceiveRing.Consumer() {
+                        @Override
+                        public void onDatagram(@NonNull byte[] data, int offset, int length,
+                                               @Nullable NetworkInterface intf) {
+                            onMessage(data, offset, length, intf);
+                        }
 
-                if (device != null) {
-                    Thread downloadThread = new Thread() {
                         @Override
-                        public void run() {
-                            try {
-                                device.downloadSpecs();
-                            } catch (Exception e) {
-                                Log.w(TAG, "onUPnPDeviceFound.downloadSpecs.Exception: " + e.getMessage());
-                            }
-                            Log.i(TAG, "UPnP.device found: " + device);
-
-                            EventBus.getDefault().post(new UPnPDeviceEvent(device));
+                        public void onTick(long nowMs) {
+                            expireLeases(nowMs);
                         }
-                    };
-                    downloadThread.start();
+                    }, LEASE_TICK_MS);
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "parser interrupted");
                 }
             }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Nullable
+    private UPnPNotifyListener startNotifyListener(@NonNull final UPnPReceiveRing ring, int maxDatagramSize) {
+        try {
+            UPnPNotifyListener listener = new UPnPNotifyListener(getMulticastInterfaces(), mDualStack,
+                    maxDatagramSize + 1, mReceiveBufferSize, new UPnPNotifyListener.Callback() {
+                @Override
+                public void onNotify(@NonNull byte[] data, int offset, int length,
+                                     @Nullable NetworkInterface intf) {
+                    ring.offer(data, offset, length, intf);
+                }
+            });
+            listener.start();
+            return listener;
 
         } catch (IOException e) {
-            //sock timeout will get us out of the loop
-            Log.i(TAG, "observe.timed out: " + e.getMessage());
-            mSock.close();
-            EventBus.getDefault().post(new UPnPObserverEndedEvent());
+            // Keep going with the M-SEARCH responses only
+            Log.w(TAG, "startNotifyListener.IOException: " + e.getMessage());
+            return null;
         }
     }
 
-    @Nullable
-    public DatagramSocket getSocket() {
-        if (mSock != null) {
-            return mSock.getSocket();
+    /**
+     * Handles an M-SEARCH response or a NOTIFY announcement, on the parsing thread.
+     * <p>
+     * Runs without the lock of the finder: the state it touches is either confined to
+     * the parsing thread or guarded by its own lock, so the events are posted and the
+     * description cache read without blocking anyone.
+     */
+    private void onMessage(@NonNull byte[] data, int offset, int length,
+                           @Nullable NetworkInterface intf) {
+        if (mFilter.isRepeat(data, offset, length)) {
+            return;
+        }
+
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "UPnP.observe.message received on " + (intf == null ? null : intf.getName()) + ": "
+                    + new String(data, offset, length));
+        }
+
+        HashMap<String, String> headers = UPnPHeaderParser.parse(data, offset, length);
+
+        String nts = headers.get(UPnPHeaderParser.KEY_NTS);
+        if (nts != null) {
+            // NOTIFY: a device sends one per embedded device and service,
+            // only keep the ones matching what the M-SEARCH looks for
+            if (!isSearchTarget(headers.get(UPnPHeaderParser.KEY_NT))) {
+                return;
+            }
+            if (NTS_BYEBYE.equals(nts)) {
+                String usn = headers.get(UPnPHeaderParser.KEY_USN);
+                if (usn != null) {
+                    mLeases.cancel(UPnPDevice.udnOf(usn));
+                }
+                if (usn != null && mFilter.release(usn)) {
+                    Log.i(TAG, "UPnP.device removed: " + usn);
+                    mEventBus.post(new UPnPDeviceRemovedEvent(usn));
+                }
+                return;
+            }
+            // ssdp:alive and ssdp:update carry a LOCATION, as the M-SEARCH responses
+        }
+
+        UPnPDevice device = UPnPDevice.fromHeaders(headers, intf == null ? null : intf.getName(),
+                mRetainRawMessages ? Arrays.copyOfRange(data, offset, offset + length) : null);
+        if (device == null) {
+            return;
+        }
+
+        // Every response or announcement renews the lease, even the ones coalesced below
+        if (device.getUdn() != null) {
+            int maxAge = device.getMaxAge();
+            mLeases.renew(device.getUdn(), maxAge > 0 ? TimeUnit.SECONDS.toMillis(maxAge) : DEFAULT_MAX_AGE_MS);
+        }
+
+        int claim = mFilter.claim(device);
+        if (claim == UPnPResponseFilter.CLAIM_NONE) {
+            return;
+        }
+        if (claim == UPnPResponseFilter.CLAIM_NEW) {
+            onNewDevice();
+        }
+
+        if (intf != null) {
+            mTransport.addLinkLocalScope(device.getHost(), intf);
+        }
+        fetch(device, claim == UPnPResponseFilter.CLAIM_CHANGED);
+    }
+
+    private void onNewDevice() {
+        long now = SystemClock.elapsedRealtime();
+        if (mFirstDeviceMs < 0) {
+            mFirstDeviceMs = now;
+        }
+        mLastDeviceMs = now;
+        mDeviceCount++;
+        UPnPSearchScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            scheduler.onNewDevice();
+        }
+    }
+
+    /**
+     * @return the time left before the observation is considered over for lack of new
+     * devices, or Long.MAX_VALUE if it is not applicable (yet)
+     */
+    private long getQuietRemainingMs(@NonNull UPnPSearchScheduler scheduler, long nowMs) {
+        if (mContinuous || mQuietPeriodMs <= 0) {
+            return Long.MAX_VALUE;
+        }
+        if (!scheduler.isDone(nowMs)) {
+            // Let the devices answer the last round first
+            return mQuietPeriodMs;
+        }
+        return Math.max(mStartMs, mLastDeviceMs) + mQuietPeriodMs - nowMs;
+    }
+
+    private boolean isSearchTarget(@Nullable String notificationType) {
+        for (String searchTarget : mSearchTargets) {
+            if (ALL.equals(searchTarget) || searchTarget.equals(notificationType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendSearch(@NonNull UPnPChannels channels, int mx) {
+        for (String searchTarget : mSearchTargets) {
+            for (Endpoint endpoint : channels.getEndpoints()) {
+                channels.sendMulticastMsg(endpoint,
+                        buildSSDPSearchString(endpoint.getHostHeader(), searchTarget, mx));
+            }
+        }
+    }
+
+    /**
+     * Removes the devices that have not renewed their lease in time, on the parsing thread.
+     */
+    private void expireLeases(long nowMs) {
+        mLeases.advance(nowMs, mExpiredLeases);
+        for (String usn : mExpiredLeases) {
+            if (mFilter.release(usn)) {
+                Log.i(TAG, "UPnP.device expired: " + usn);
+                mEventBus.post(new UPnPDeviceRemovedEvent(usn));
+            }
+        }
+        mExpiredLeases.clear();
+    }
+
+    void setDescriptionCache(@Nullable UPnPDescriptionCache cache) {
+        mDescriptionCache = cache;
+    }
+
+    private void fetch(@NonNull UPnPDevice device, boolean update) {
+        UPnPDescriptionCache cache = mDescriptionCache;
+        if (cache != null) {
+            UPnPDescription description = cache.get(device);
+            if (description != null) {
+                device = device.withDescription(description);
+                Log.i(TAG, "UPnP.device found (cached): " + device);
+                mEventBus.post(new UPnPDeviceEvent(device, update));
+                return;
+            }
+        }
+
+        if (mLazyDescriptions) {
+            Log.i(TAG, "UPnP.device found (headers only): " + device);
+            mEventBus.post(new UPnPDeviceEvent(device, update));
+            return;
+        }
+
+        if (!mSession.enter()) {
+            // Closed
+            return;
+        }
+        boolean newHost = mSeenHosts.add(device.getHost());
+        if (!mFetchExecutor.execute(new Download(device, update, cache), newHost, mSession)) {
+            Log.w(TAG, "fetch: download dropped for " + device.getLocation());
+        }
+    }
+
+    /**
+     * Downloads the description of a device, and posts it. Accounted for in the session
+     * until it has run or been dropped.
+     */
+    private class Download implements Runnable, UPnPFetchExecutor.Droppable {
+
+        @NonNull
+        private final UPnPDevice mDevice;
+        private final boolean mUpdate;
+        @Nullable
+        private final UPnPDescriptionCache mCache;
+
+        Download(@NonNull UPnPDevice device, boolean update, @Nullable UPnPDescriptionCache cache) {
+            this.mDevice = device;
+            this.mUpdate = update;
+            this.mCache = cache;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (mSession.isCancelled()) {
+                    return;
+                }
+                UPnPDevice device = mDevice;
+                try {
+                    UPnPDescription description = mDevice.downloadSpecs(mTransport, mSession);
+                    if (mCache != null) {
+                        mCache.put(mDevice, description);
+                    }
+                    device = mDevice.withDescription(description);
+                } catch (Exception e) {
+                    if (mSession.isCancelled()) {
+                        return;
+                    }
+                    Log.w(TAG, "onUPnPDeviceFound.downloadSpecs.Exception: " + e.getMessage());
+                }
+                // The device may have said goodbye or changed during the download
+                if (mSession.isCancelled() || !mFilter.isCurrent(mDevice)) {
+                    return;
+                }
+                Log.i(TAG, "UPnP.device found: " + device);
+
+                mEventBus.post(new UPnPDeviceEvent(device, mUpdate));
+            } finally {
+                mSession.exit();
+            }
+        }
+
+        @Override
+        public void onDropped() {
+            mSession.exit();
         }
-        return null;
     }
 
     ////////////////////////////////////////////////////////////////////////////////
-    // UPnPSocket
+    // UPnPChannels
     ////////////////////////////////////////////////////////////////////////////////
 
-    private class UPnPSocket {
+    /**
+     * One non-blocking channel per address of the network interfaces able to reach
+     * the LAN, all multiplexed on a single {@link Selector}.
+     */
+    private static class UPnPChannels {
+
+        private static final String TAG = "UPnPChannels";
+
+        private final Selector mSelector;
+        private final List<DatagramChannel> mChannels = new ArrayList<>();
+        private final List<Endpoint> mEndpoints = new ArrayList<>();
+
+        private final int mReceiveBufferSize;
+
+        UPnPChannels(boolean dualStack, int receiveBufferSize) throws IOException {
+            mReceiveBufferSize = receiveBufferSize;
+            mSelector = Selector.open();
+
+            for (NetworkInterface intf : getMulticastInterfaces()) {
+                for (InetAddress addr : Collections.list(intf.getInetAddresses())) {
+                    if (addr instanceof Inet4Address) {
+                        open(intf, addr, new InetSocketAddress(MULTICAST_ADDRESS, PORT),
+                                MULTICAST_ADDRESS + ":" + PORT);
+
+                    } else if (dualStack && addr instanceof Inet6Address) {
+                        if (addr.isLinkLocalAddress()) {
+                            // The link-local group needs the scope of the interface to be routed
+                            InetAddress group = Inet6Address.getByAddress(null,
+                                    InetAddress.getByName(MULTICAST_ADDRESS_V6_LINK_LOCAL).getAddress(), intf);
+                            open(intf, addr, new InetSocketAddress(group, PORT),
+                                    "[" + MULTICAST_ADDRESS_V6_LINK_LOCAL + "]:" + PORT);
+                        } else {
+                            open(intf, addr, new InetSocketAddress(MULTICAST_ADDRESS_V6_SITE_LOCAL, PORT),
+                                    "[" + MULTICAST_ADDRESS_V6_SITE_LOCAL + "]:" + PORT);
+                        }
+                    }
+                }
+            }
 
-        private static final String TAG = "UPnPSocket";
+            if (mChannels.isEmpty()) {
+                close();
+                throw new IOException("no multicast capable interface");
+            }
+        }
 
-        private SocketAddress mMulticastGroup;
-        private MulticastSocket mMultiSocket;
+        private void open(@NonNull NetworkInterface intf,
+                          @NonNull InetAddress addr,
+                          @NonNull InetSocketAddress group,
+                          @NonNull String hostHeader) {
+            DatagramChannel channel = null;
+            try {
+                channel = DatagramChannel.open();
+                if (mReceiveBufferSize > 0) {
+                    channel.socket().setReceiveBufferSize(mReceiveBufferSize);
+                }
+                // Bound to the interface address, the IPv4 multicast datagrams are sent
+                // through that interface. The IPv6 link-local group carries its scope.
+                channel.socket().bind(new InetSocketAddress(addr, 0));
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, intf);
+                }
+                channel.configureBlocking(false);
 
-        UPnPSocket(InetAddress deviceIp) throws IOException {
-            mMulticastGroup = new InetSocketAddress(MULTICAST_ADDRESS, PORT);
-            mMultiSocket = new MulticastSocket(new InetSocketAddress(deviceIp, 0));
+                Endpoint endpoint = new Endpoint(channel, intf, group, hostHeader);
+                channel.register(mSelector, SelectionKey.OP_READ, endpoint);
+                mChannels.add(channel);
+                mEndpoints.add(endpoint);
+                Log.i(TAG, "open: " + endpoint);
 
-            mMultiSocket.setSoTimeout(mTimeoutMs + 1000);
+            } catch (IOException e) {
+                Log.w(TAG, "open: " + intf.getName() + " " + addr + ": " + e.getMessage());
+                closeQuietly(channel);
+            }
         }
 
-        void sendMulticastMsg() throws IOException {
-            String ssdpMsg = buildSSDPSearchString();
+        @NonNull
+        List<Endpoint> getEndpoints() {
+            return mEndpoints;
+        }
 
-            Log.d(TAG, "sendMulticastMsg: " + ssdpMsg);
+        void sendMulticastMsg(@NonNull Endpoint endpoint, @NonNull String ssdpMsg) {
+            Log.d(TAG, "sendMulticastMsg: " + endpoint + ": " + ssdpMsg);
 
-            DatagramPacket dp = new DatagramPacket(ssdpMsg.getBytes(), ssdpMsg.length(), mMulticastGroup);
-            mMultiSocket.send(dp);
+            try {
+                endpoint.mChannel.send(ByteBuffer.wrap(ssdpMsg.getBytes()), endpoint.mGroup);
+            } catch (IOException e) {
+                Log.w(TAG, "sendMulticastMsg: " + endpoint + ": " + e.getMessage());
+            }
         }
 
-        DatagramPacket receiveMulticastMsg() throws IOException {
-            byte[] buf = new byte[2048];
-            DatagramPacket dp = new DatagramPacket(buf, buf.length);
+        int select(long timeoutMs) throws IOException {
+            return mSelector.select(timeoutMs);
+        }
 
-            mMultiSocket.receive(dp);
+        @NonNull
+        Set<SelectionKey> selectedKeys() {
+            return mSelector.selectedKeys();
+        }
 
-            return dp;
+        void wakeup() {
+            mSelector.wakeup();
         }
 
         /**
-         * Closing the Socket.
+         * Closing the channels.
          */
-        public void close() {
-            if (mMultiSocket != null) {
-                mMultiSocket.close();
+        void close() {
+            for (DatagramChannel channel : mChannels) {
+                closeQuietly(channel);
+            }
+            mChannels.clear();
+            mEndpoints.clear();
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                //ignore
             }
         }
 
-        @Nullable
-        public DatagramSocket getSocket() {
-            return mMultiSocket;
+        private static void closeQuietly(@Nullable DatagramChannel channel) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // Endpoint
+    ////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A channel, with the interface it is bound to and the SSDP group it searches.
+     */
+    private static class Endpoint {
+
+        @NonNull
+        private final DatagramChannel mChannel;
+
+        @NonNull
+        private final NetworkInterface mInterface;
+
+        @NonNull
+        private final InetSocketAddress mGroup;
+
+        @NonNull
+        private final String mHostHeader;
+
+        Endpoint(@NonNull DatagramChannel channel,
+                 @NonNull NetworkInterface intf,
+                 @NonNull InetSocketAddress group,
+                 @NonNull String hostHeader) {
+            this.mChannel = channel;
+            this.mInterface = intf;
+            this.mGroup = group;
+            this.mHostHeader = hostHeader;
+        }
+
+        @NonNull
+        NetworkInterface getInterface() {
+            return mInterface;
+        }
+
+        @NonNull
+        String getHostHeader() {
+            return mHostHeader;
+        }
+
+        @Override
+        public String toString() {
+            return mInterface.getName() + " " + mChannel.socket().getLocalSocketAddress() + " -> " + mHostHeader;
         }
     }
 
@@ -199,14 +845,16 @@ class UPnPDeviceFinder {
     // Utils
     ////////////////////////////////////////////////////////////////////////////////
 
-    private String buildSSDPSearchString() {
+    private static String buildSSDPSearchString(@NonNull String hostHeader,
+                                                @NonNull String searchTarget,
+                                                int mx) {
         StringBuilder content = new StringBuilder();
 
         content.append("M-SEARCH * HTTP/1.1").append(NEWLINE);
-        content.append("Host: " + MULTICAST_ADDRESS + ":" + PORT).append(NEWLINE);
+        content.append("Host: ").append(hostHeader).append(NEWLINE);
         content.append("Man:\"ssdp:discover\"").append(NEWLINE);
-        content.append("MX: ").append(TimeUnit.MILLISECONDS.toSeconds(mTimeoutMs)).append(NEWLINE);
-        content.append("ST: upnp:rootdevice").append(NEWLINE);
+        content.append("MX: ").append(mx).append(NEWLINE);
+        content.append("ST: ").append(searchTarget).append(NEWLINE);
         content.append(NEWLINE);
 
         Log.d(TAG, "buildSSDPSearchString: " + content.toString());
@@ -214,40 +862,24 @@ class UPnPDeviceFinder {
         return content.toString();
     }
 
-    private static InetAddress getDeviceLocalIP(boolean useIPv4) {
+    /**
+     * The interfaces that are up and able to send multicast datagrams. Loopback,
+     * point to point (VPN tunnels...) and virtual (aliases) interfaces are skipped.
+     */
+    @NonNull
+    private static List<NetworkInterface> getMulticastInterfaces() {
+        List<NetworkInterface> results = new ArrayList<>();
         try {
             List<NetworkInterface> interfaces = Collections.list(NetworkInterface.getNetworkInterfaces());
             for (NetworkInterface intf : interfaces) {
-                List<InetAddress> addrs = Collections.list(intf.getInetAddresses());
-                for (InetAddress addr : addrs) {
-                    if (!addr.isLoopbackAddress()) {
-                        Log.i(TAG, "IP from inet is: " + addr);
-                        String sAddr = addr.getHostAddress().toUpperCase();
-                        boolean isIPv4 = isIPv4Address(sAddr);
-                        if (useIPv4) {
-                            if (isIPv4) {
-                                Log.i(TAG, "getDeviceLocalIP: IPv4");
-                                return addr;
-                            }
-                        }
-                        else {
-                            if (!isIPv4) {
-                                Log.i(TAG, "getDeviceLocalIP: IPv6");
-                                //int delim = sAddr.indexOf('%'); // drop ip6 port suffix
-                                //return delim<0 ? sAddr : sAddr.substring(0, delim);
-                                return addr;
-                            }
-                        }
-                    }
+                if (intf.isUp() && !intf.isLoopback() && !intf.isPointToPoint()
+                        && !intf.isVirtual() && intf.supportsMulticast()) {
+                    results.add(intf);
                 }
             }
         } catch (Exception e) {
-            Log.w(TAG, "getDeviceLocalIP.Exception: ", e);
+            Log.w(TAG, "getMulticastInterfaces.Exception: ", e);
         }
-        return null;
-    }
-
-    private static boolean isIPv4Address(final String input) {
-        return IPV4_PATTERN.matcher(input).matches();
+        return results;
     }
-}
\ No newline at end of file
+}
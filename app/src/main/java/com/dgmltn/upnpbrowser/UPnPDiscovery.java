@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+
+import com.dgmltn.upnpbrowser.event.UPnPDeviceEvent;
+import com.dgmltn.upnpbrowser.event.UPnPErrorEvent;
+import com.dgmltn.upnpbrowser.event.UPnPObserverEndedEvent;
+
+import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.Subscribe;
+import org.greenrobot.eventbus.ThreadMode;
+import org.reactivestreams.Publisher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableEmitter;
+import io.reactivex.FlowableOnSubscribe;
+import io.reactivex.FlowableTransformer;
+import io.reactivex.functions.Cancellable;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.functions.Predicate;
+
+/**
+ * Reactive alternative to {@link UPnPHelper}, without any adapter.
+ * <p>
+ * Each subscription to {@link #devices()} runs its own observation, on its own event
+ * bus: the results of concurrent scans are never mixed, and unsubscribing stops the
+ * observation. Several consumers can share a single observation with
+ * {@link Flowable#share()}.
+ * <pre>
+ * Flowable&lt;List&lt;UPnPDevice&gt;&gt; batches = new UPnPDiscovery(10000)
+ *         .devices()
+ *         .compose(UPnPDiscovery.distinctDevices())
+ *         .compose(UPnPDiscovery.batches(100));
+ * </pre>
+ * Unlike {@link UPnPHelper}, it does not report the devices leaving the network (byebye
+ * or expired lease), and has no lazy descriptions: use a {@link UPnPDiscoveryEngine}
+ * for those.
+ */
+public class UPnPDiscovery {
+
+    private static final String TAG = "UPnPDiscovery";
+
+    private final int mTimeoutMs;
+
+    @NonNull
+    private final UPnPFetchExecutor mFetchExecutor;
+
+    @NonNull
+    private final UPnPTransport mTransport;
+
+    @Nullable
+    private volatile UPnPDescriptionCache mDescriptionCache;
+
+    private volatile boolean mDualStack;
+
+    private volatile boolean mContinuous;
+
+    @Nullable
+    private volatile String[] mSearchTargets;
+
+    private volatile long mQuietPeriodMs;
+
+    private volatile int mReceiveBufferSize;
+
+    private volatile int mMaxDatagramSize = UPnPDeviceFinder.DEFAULT_MAX_DATAGRAM_SIZE;
+
+    private volatile boolean mRetainRawMessages;
+
+    public UPnPDiscovery() {
+        this(0);
+    }
+
+    public UPnPDiscovery(int timeoutMs) {
+        this(timeoutMs, UPnPFetchExecutor.getDefault(), UPnPTransport.getDefault());
+    }
+
+    public UPnPDiscovery(int timeoutMs,
+                         @NonNull UPnPFetchExecutor fetchExecutor,
+                         @NonNull UPnPTransport transport) {
+        this.mTimeoutMs = timeoutMs;
+        this.mFetchExecutor = fetchExecutor;
+        this.mTransport = transport;
+    }
+
+    /**
+     * @see UPnPHelper#setDescriptionCache(UPnPDescriptionCache)
+     */
+    @AnyThread
+    public void setDescriptionCache(@Nullable UPnPDescriptionCache cache) {
+        mDescriptionCache = cache;
+    }
+
+    /**
+     * @see UPnPHelper#setDualStack(boolean)
+     */
+    @AnyThread
+    public void setDualStack(boolean dualStack) {
+        mDualStack = dualStack;
+    }
+
+    /**
+     * Keeps observing the network until unsubscribed: the stream then never completes.
+     *
+     * @see UPnPHelper#setContinuous(boolean)
+     */
+    @AnyThread
+    public void setContinuous(boolean continuous) {
+        mContinuous = continuous;
+    }
+
+    /**
+     * @see UPnPHelper#setSearchTargets(String...)
+     */
+    @AnyThread
+    public void setSearchTargets(@NonNull String... searchTargets) {
+        mSearchTargets = searchTargets.clone();
+    }
+
+    /**
+     * @see UPnPHelper#setQuietPeriod(long)
+     */
+    @AnyThread
+    public void setQuietPeriod(long quietPeriodMs) {
+        mQuietPeriodMs = quietPeriodMs;
+    }
+
+    /**
+     * @see UPnPHelper#setReceiveBufferSize(int)
+     */
+    @AnyThread
+    public void setReceiveBufferSize(int bytes) {
+        mReceiveBufferSize = bytes;
+    }
+
+    /**
+     * @see UPnPHelper#setMaxDatagramSize(int)
+     */
+    @AnyThread
+    public void setMaxDatagramSize(int bytes) {
+        mMaxDatagramSize = bytes;
+    }
+
+    /**
+     * @see UPnPHelper#setRetainRawMessages(boolean)
+     */
+    @AnyThread
+    public void setRetainRawMessages(boolean retain) {
+        mRetainRawMessages = retain;
+    }
+
+    /**
+     * The devices found and updated, on the discovery threads. Each subscription starts a
+     * new observation, stopped when it is cancelled. The stream completes when the
+     * observation ends, and fails with an {@link IOException} if it could not start.
+     * <p>
+     * The devices are buffered until requested, none is lost: a device is only emitted
+     * again when it has changed (the repeated responses and announcements are dropped
+     * beforehand), so the buffer stays within a few versions of each device of the
+     * network. The devices leaving the network are not reported: use a
+     * {@link UPnPHelper} for that.
+     */
+    @NonNull
+    public Flowable<UPnPDevice> devices() {
+        return devices(null);
+    }
+
+    /**
+     * Same as {@link #devices()}, and calls onEnded with the end of each observation, once
+     * its last download has returned. It is called after the subscription has been
+     * cancelled as well ({@link UPnPObserverEndedEvent#isCancelled()}): the scan has then
+     * fully stopped.
+     */
+    @NonNull
+    public Flowable<UPnPDevice> devices(@Nullable final Consumer<? super UPnPObserverEndedEvent> onEnded) {
+        return Flowable.create(new FlowableOnSubscribe<UPnPDevice>() {
+            @Override
+            public void subscribe(FlowableEmitter<UPnPDevice> emitter) {
+                final EventBus eventBus = EventBus.builder()
+                        .logNoSubscriberMessages(false)
+                        .sendNoSubscriberEvent(false)
+                        .build();
+                final UPnPDeviceFinder finder = newFinder(eventBus);
+                // The devices are posted from several threads. The subscriber stays
+                // registered until the end of the observation, even once cancelled.
+                EmitterSubscriber subscriber = new EmitterSubscriber(eventBus, emitter.serialize(), onEnded);
+                eventBus.register(subscriber);
+                emitter.setCancellable(new Cancellable() {
+                    @Override
+                    public void cancel() {
+                        finder.close();
+                    }
+                });
+
+                Thread thread = new Thread("UPnPDiscovery") {
+                    @Override
+                    public void run() {
+                        finder.observe();
+                    }
+                };
+                thread.start();
+            }
+        }, BackpressureStrategy.BUFFER);
+    }
+
+    @NonNull
+    private UPnPDeviceFinder newFinder(@NonNull EventBus eventBus) {
+        UPnPDeviceFinder finder = new UPnPDeviceFinder(mTimeoutMs, mFetchExecutor, mTransport, eventBus);
+        finder.setDescriptionCache(mDescriptionCache);
+        finder.setDualStack(mDualStack);
+        finder.setContinuous(mContinuous);
+        finder.setQuietPeriod(mQuietPeriodMs);
+        finder.setReceiveBufferSize(mReceiveBufferSize);
+        finder.setMaxDatagramSize(mMaxDatagramSize);
+        finder.setRetainRawMessages(mRetainRawMessages);
+        String[] searchTargets = mSearchTargets;
+        if (searchTargets != null) {
+            finder.setSearchTargets(searchTargets);
+        }
+        return finder;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // Operators
+    ////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Drops the devices that have not changed since they were last emitted
+     * (a device answers the same search several times).
+     */
+    @NonNull
+    public static FlowableTransformer<UPnPDevice, UPnPDevice> distinctDevices() {
+        return new FlowableTransformer<UPnPDevice, UPnPDevice>() {
+            @Override
+            public Publisher<UPnPDevice> apply(final Flowable<UPnPDevice> upstream) {
+                return Flowable.defer(new Callable<Publisher<UPnPDevice>>() {
+                    @Override
+                    public Publisher<UPnPDevice> call() {
+                        // One state per subscription
+                        final HashMap<Long, UPnPDevice> emitted = new HashMap<>();
+                        return upstream.filter(new Predicate<UPnPDevice>() {
+                            @Override
+                            public boolean test(UPnPDevice device) {
+                                UPnPDevice previous = emitted.put(device.getStableId(), device);
+                                return previous == null || UPnPDeviceAdapter.diff(previous, device) != 0;
+                            }
+                        });
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Only emits the latest version of each device, once it has not been updated for the
+     * given time. Only the devices waiting to be emitted are tracked, so that it can run
+     * on a continuous observation.
+     */
+    @NonNull
+    public static FlowableTransformer<UPnPDevice, UPnPDevice> debounceDevices(final long timeoutMs) {
+        return new FlowableTransformer<UPnPDevice, UPnPDevice>() {
+            @Override
+            public Publisher<UPnPDevice> apply(final Flowable<UPnPDevice> upstream) {
+                return Flowable.defer(new Callable<Publisher<UPnPDevice>>() {
+                    @Override
+                    public Publisher<UPnPDevice> call() {
+                        // The latest arrival of each device waiting, one state per subscription
+                        final HashMap<Long, Object> pending = new HashMap<>();
+                        return upstream.flatMap(new Function<UPnPDevice, Publisher<UPnPDevice>>() {
+                            @Override
+                            public Publisher<UPnPDevice> apply(final UPnPDevice device) {
+                                final Long id = device.getStableId();
+                                final Object arrival = new Object();
+                                synchronized (pending) {
+                                    pending.put(id, arrival);
+                                }
+                                return Flowable.timer(timeoutMs, TimeUnit.MILLISECONDS)
+                                        .filter(new Predicate<Long>() {
+                                            @Override
+                                            public boolean test(Long tick) {
+                                                synchronized (pending) {
+                                                    // Superseded by a newer version of the device
+                                                    if (pending.get(id) != arrival) {
+                                                        return false;
+                                                    }
+                                                    pending.remove(id);
+                                                    return true;
+                                                }
+                                            }
+                                        })
+                                        .map(new Function<Long, UPnPDevice>() {
+                                            @Override
+                                            public UPnPDevice apply(Long tick) {
+                                                return device;
+                                            }
+                                        });
+                            }
+                        }, Integer.MAX_VALUE);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Gathers the devices emitted during each window, sorted and without duplicates,
+     * ready for {@link UPnPDeviceAdapter#addItems(List)}. Empty windows are skipped.
+     * The texts displayed by the adapter are built here, on the scheduler of the window.
+     */
+    @NonNull
+    public static FlowableTransformer<UPnPDevice, List<UPnPDevice>> batches(final long windowMs) {
+        return new FlowableTransformer<UPnPDevice, List<UPnPDevice>>() {
+            @Override
+            public Publisher<List<UPnPDevice>> apply(Flowable<UPnPDevice> upstream) {
+                return upstream
+                        .buffer(windowMs, TimeUnit.MILLISECONDS)
+                        .filter(new Predicate<List<UPnPDevice>>() {
+                            @Override
+                            public boolean test(List<UPnPDevice> batch) {
+                                return !batch.isEmpty();
+                            }
+                        })
+                        .map(new Function<List<UPnPDevice>, List<UPnPDevice>>() {
+                            @Override
+                            public List<UPnPDevice> apply(List<UPnPDevice> batch) {
+                                return sortDistinct(batch);
+                            }
+                        });
+            }
+        };
+    }
+
+    @NonNull
+    private static List<UPnPDevice> sortDistinct(@NonNull List<UPnPDevice> batch) {
+        Comparator<UPnPDevice> comparator = new UPnPDeviceComparator();
+        ArrayList<UPnPDevice> sorted = new ArrayList<>(batch.size());
+        for (UPnPDevice device : batch) {
+            // Build the texts of its row here, off the main thread
+            device.getDisplay();
+            int index = Collections.binarySearch(sorted, device, comparator);
+            if (index >= 0) {
+                // The latest version of the device wins
+                sorted.set(index, device);
+            } else {
+                sorted.add(-index - 1, device);
+            }
+        }
+        return sorted;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // EmitterSubscriber
+    ////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Forwards the events of one observation to its subscription (the emitter ignores
+     * them once cancelled), until the end of the observation.
+     * Public for the event bus only.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static class EmitterSubscriber {
+
+        @NonNull
+        private final EventBus mEventBus;
+
+        @NonNull
+        private final FlowableEmitter<UPnPDevice> mEmitter;
+
+        @Nullable
+        private final Consumer<? super UPnPObserverEndedEvent> mOnEnded;
+
+        EmitterSubscriber(@NonNull EventBus eventBus,
+                          @NonNull FlowableEmitter<UPnPDevice> emitter,
+                          @Nullable Consumer<? super UPnPObserverEndedEvent> onEnded) {
+            this.mEventBus = eventBus;
+            this.mEmitter = emitter;
+            this.mOnEnded = onEnded;
+        }
+
+        @SuppressWarnings("unused")
+        @Subscribe(threadMode = ThreadMode.POSTING)
+        public void onUPnPDeviceEvent(@NonNull UPnPDeviceEvent event) {
+            mEmitter.onNext(event.getUPnPDevice());
+        }
+
+        @SuppressWarnings("unused")
+        @Subscribe(threadMode = ThreadMode.POSTING)
+        public void onUPnPObserverEndedEvent(@NonNull UPnPObserverEndedEvent event) {
+            mEventBus.unregister(this);
+            if (mOnEnded != null) {
+                try {
+                    mOnEnded.accept(event);
+                } catch (Exception e) {
+                    Log.w(TAG, "onEnded.Exception: ", e);
+                }
+            }
+            mEmitter.onComplete();
+        }
+
+        @SuppressWarnings("unused")
+        @Subscribe(threadMode = ThreadMode.POSTING)
+        public void onUPnPErrorEvent(@NonNull UPnPErrorEvent event) {
+            mEventBus.unregister(this);
+            mEmitter.tryOnError(new IOException(event.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import android.util.Log;
+
+import com.dgmltn.upnpbrowser.event.UPnPDeviceEvent;
+import com.dgmltn.upnpbrowser.event.UPnPDeviceRemovedEvent;
+import com.dgmltn.upnpbrowser.event.UPnPErrorEvent;
+import com.dgmltn.upnpbrowser.event.UPnPObserverEndedEvent;
+
+import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.Subscribe;
+import org.greenrobot.eventbus.ThreadMode;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Runs one observation for any number of listeners (helpers, screens...), instead of
+ * one socket set, one thread and one M-SEARCH storm each.
+ * <p>
+ * The observation starts with the first listener attached, and is stopped when the last
+ * one detaches: that listener still receives the end of the observation, once its last
+ * download has returned. A listener attached while the observation is running first
+ * receives the devices already found; one attached after the end of the observation
+ * receives them too, and starts a new observation.
+ * <p>
+ * The options apply to the next observation started.
+ */
+public class UPnPDiscoveryEngine {
+
+    private static final String TAG = "UPnPDiscoveryEngine";
+
+    /**
+     * Receives the events of the observation, on the discovery threads.
+     */
+    public interface Listener {
+
+        @WorkerThread
+        void onUPnPDeviceEvent(@NonNull UPnPDeviceEvent event);
+
+        @WorkerThread
+        void onUPnPDeviceRemovedEvent(@NonNull UPnPDeviceRemovedEvent event);
+
+        @WorkerThread
+        void onUPnPObserverEndedEvent(@NonNull UPnPObserverEndedEvent event);
+
+        @WorkerThread
+        void onUPnPErrorEvent(@NonNull UPnPErrorEvent event);
+    }
+
+    private static UPnPDiscoveryEngine sDefault;
+
+    private final int mTimeoutMs;
+
+    @NonNull
+    private final UPnPFetchExecutor mFetchExecutor;
+
+    @NonNull
+    private final UPnPTransport mTransport;
+
+    @Nullable
+    private UPnPDescriptionCache mDescriptionCache;
+    private boolean mDualStack;
+    private boolean mContinuous;
+    @Nullable
+    private String[] mSearchTargets;
+    private long mQuietPeriodMs;
+    private int mReceiveBufferSize;
+    private int mMaxDatagramSize = UPnPDeviceFinder.DEFAULT_MAX_DATAGRAM_SIZE;
+    private boolean mRetainRawMessages;
+    private boolean mLazyDescriptions;
+
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    // Devices found, by stable id, for the late listeners
+    private final LinkedHashMap<Long, UPnPDevice> mDevices = new LinkedHashMap<>();
+
+    // The descriptions downloaded on demand, while listeners are attached, and the
+    // devices whose description is being (or failed to be) downloaded
+    @Nullable
+    private UPnPScanSession mDescriptionSession;
+    private final HashSet<Long> mDescribing = new HashSet<>();
+
+    // The running observation
+    @Nullable
+    private Observation mObservation;
+
+    public UPnPDiscoveryEngine() {
+        this(0);
+    }
+
+    public UPnPDiscoveryEngine(int timeoutMs) {
+        this(timeoutMs, UPnPFetchExecutor.getDefault(), UPnPTransport.getDefault());
+    }
+
+    public UPnPDiscoveryEngine(int timeoutMs,
+                               @NonNull UPnPFetchExecutor fetchExecutor,
+                               @NonNull UPnPTransport transport) {
+        this.mTimeoutMs = timeoutMs;
+        this.mFetchExecutor = fetchExecutor;
+        this.mTransport = transport;
+    }
+
+    /**
+     * The engine shared by the whole process, with the default options.
+     */
+    @NonNull
+    public static synchronized UPnPDiscoveryEngine getDefault() {
+        if (sDefault == null) {
+            sDefault = new UPnPDiscoveryEngine();
+        }
+        return sDefault;
+    }
+
+    /**
+     * @see UPnPHelper#setDescriptionCache(UPnPDescriptionCache)
+     */
+    @AnyThread
+    public synchronized void setDescriptionCache(@Nullable UPnPDescriptionCache cache) {
+        mDescriptionCache = cache;
+    }
+
+    /**
+     * @see UPnPHelper#setDualStack(boolean)
+     */
+    @AnyThread
+    public synchronized void setDualStack(boolean dualStack) {
+        mDualStack = dualStack;
+    }
+
+    /**
+     * @see UPnPHelper#setContinuous(boolean)
+     */
+    @AnyThread
+    public synchronized void setContinuous(boolean continuous) {
+        mContinuous = continuous;
+    }
+
+    /**
+     * @see UPnPHelper#setSearchTargets(String...)
+     */
+    @AnyThread
+    public synchronized void setSearchTargets(@NonNull String... searchTargets) {
+        mSearchTargets = searchTargets.clone();
+    }
+
+    /**
+     * @see UPnPHelper#setQuietPeriod(long)
+     */
+    @AnyThread
+    public synchronized void setQuietPeriod(long quietPeriodMs) {
+        mQuietPeriodMs = quietPeriodMs;
+    }
+
+    /**
+     * @see UPnPHelper#setReceiveBufferSize(int)
+     */
+    @AnyThread
+    public synchronized void setReceiveBufferSize(int bytes) {
+        mReceiveBufferSize = bytes;
+    }
+
+    /**
+     * @see UPnPHelper#setMaxDatagramSize(int)
+     */
+    @AnyThread
+    public synchronized void setMaxDatagramSize(int bytes) {
+        mMaxDatagramSize = bytes;
+    }
+
+    /**
+     * @see UPnPHelper#setRetainRawMessages(boolean)
+     */
+    @AnyThread
+    public synchronized void setRetainRawMessages(boolean retain) {
+        mRetainRawMessages = retain;
+    }
+
+    /**
+     * @see UPnPHelper#setLazyDescriptions(boolean)
+     */
+    @AnyThread
+    public synchronized void setLazyDescriptions(boolean lazy) {
+        mLazyDescriptions = lazy;
+    }
+
+    /**
+     * Attaches a listener: it immediately receives the devices already found, then the
+     * events of the observation, started if needed. A listener still attached after the
+     * end of the observation starts a new one.
+     */
+    @AnyThread
+    public synchronized void attach(@NonNull Listener listener) {
+        if (mListeners.contains(listener)) {
+            if (mObservation == null) {
+                start();
+            }
+            return;
+        }
+        mListeners.add(listener);
+        if (mDescriptionSession == null) {
+            mDescriptionSession = new UPnPScanSession();
+        }
+        for (UPnPDevice device : mDevices.values()) {
+            listener.onUPnPDeviceEvent(new UPnPDeviceEvent(device));
+        }
+        if (mObservation == null) {
+            start();
+        }
+    }
+
+    /**
+     * Detaches a listener. The observation is stopped once the last listener has detached,
+     * and the devices found and the descriptions being downloaded are then released. The
+     * last listener still receives {@link Listener#onUPnPObserverEndedEvent} once the
+     * observation has fully stopped ({@link UPnPObserverEndedEvent#isCancelled()}).
+     */
+    @AnyThread
+    public void detach(@NonNull Listener listener) {
+        UPnPDeviceFinder finder = null;
+        UPnPScanSession descriptionSession = null;
+        synchronized (this) {
+            if (mListeners.remove(listener) && mListeners.isEmpty()) {
+                finder = stop(listener);
+                mDevices.clear();
+                descriptionSession = mDescriptionSession;
+                mDescriptionSession = null;
+                mDescribing.clear();
+            }
+        }
+        close(finder);
+        if (descriptionSession != null) {
+            descriptionSession.cancel();
+            mFetchExecutor.cancel(descriptionSession);
+        }
+    }
+
+    /**
+     * Downloads the description of a device published from its SSDP headers only (see
+     * {@link #setLazyDescriptions(boolean)}), even after the end of the observation as long
+     * as a listener is attached. The device is then published again, as an update, to all
+     * the listeners.
+     * <p>
+     * Does nothing if the description is already known or being downloaded, if the
+     * device is no longer known, or if its download has already failed.
+     */
+    @AnyThread
+    public void requestDescription(@NonNull UPnPDevice device) {
+        DescriptionDownload download;
+        synchronized (this) {
+            UPnPDevice current = mDevices.get(device.getStableId());
+            UPnPScanSession session = mDescriptionSession;
+            if (current == null || current.hasDescription() || session == null
+                    || !mDescribing.add(current.getStableId())) {
+                return;
+            }
+            if (!session.enter()) {
+                mDescribing.remove(current.getStableId());
+                return;
+            }
+            download = new DescriptionDownload(current, session, mDescriptionCache);
+        }
+        // Out of the lock: a download dropped by the executor calls back into the engine.
+        // Ahead of the downloads of the scans: a row is waiting for it.
+        mFetchExecutor.execute(download, true, download.mSession);
+    }
+
+    @AnyThread
+    public synchronized int getListenerCount() {
+        return mListeners.size();
+    }
+
+    /**
+     * @return the devices found so far
+     */
+    @AnyThread
+    @NonNull
+    public synchronized List<UPnPDevice> getDevices() {
+        return new ArrayList<>(mDevices.values());
+    }
+
+    private void start() {
+        EventBus eventBus = EventBus.builder()
+                .logNoSubscriberMessages(false)
+                .sendNoSubscriberEvent(false)
+                .build();
+        final UPnPDeviceFinder finder = new UPnPDeviceFinder(mTimeoutMs, mFetchExecutor, mTransport, eventBus);
+        finder.setDescriptionCache(mDescriptionCache);
+        finder.setDualStack(mDualStack);
+        finder.setContinuous(mContinuous);
+        finder.setQuietPeriod(mQuietPeriodMs);
+        finder.setReceiveBufferSize(mReceiveBufferSize);
+        finder.setMaxDatagramSize(mMaxDatagramSize);
+        finder.setRetainRawMessages(mRetainRawMessages);
+        finder.setLazyDescriptions(mLazyDescriptions);
+        if (mSearchTargets != null) {
+            finder.setSearchTargets(mSearchTargets);
+        }
+
+        // A new bus for each observation: the late events of a stopped one are told apart
+        Observation observation = new Observation(eventBus, finder);
+        eventBus.register(observation);
+        mObservation = observation;
+
+        Log.i(TAG, "start: " + mListeners.size() + " listeners");
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                finder.observe();
+            }
+        };
+        thread.start();
+    }
+
+    /**
+     * Stops listening to the devices of the observation. Its end is still delivered, to
+     * the listener that stopped it.
+     *
+     * @param listener the last listener, detached, or null
+     * @return the finder of the observation, to be closed by the caller once out of the
+     * lock (closing drops the queued downloads, which may post the end of the observation
+     * on the calling thread)
+     */
+    @Nullable
+    private UPnPDeviceFinder stop(@Nullable Listener listener) {
+        Observation observation = mObservation;
+        if (observation == null) {
+            return null;
+        }
+        mObservation = null;
+        if (listener != null) {
+            observation.mStoppedBy = listener;
+        }
+        return observation.mFinder;
+    }
+
+    private static void close(@Nullable UPnPDeviceFinder finder) {
+        if (finder != null) {
+            Log.i(TAG, "stop");
+            finder.close();
+        }
+    }
+
+    /**
+     * Publishes a device described on demand, unless it has changed or left meanwhile.
+     *
+     * @param described the device with its description, or null if the download failed
+     * @param retry     true to allow another download of the description
+     */
+    private synchronized void onDescribed(@NonNull UPnPScanSession session,
+                                          @NonNull UPnPDevice device,
+                                          @Nullable UPnPDevice described,
+                                          boolean retry) {
+        long id = device.getStableId();
+        if (retry) {
+            mDescribing.remove(id);
+        }
+        if (described == null || session != mDescriptionSession || mDevices.get(id) != device) {
+            return;
+        }
+        mDescribing.remove(id);
+        mDevices.put(id, described);
+        UPnPDeviceEvent event = new UPnPDeviceEvent(described, true);
+        for (Listener listener : mListeners) {
+            listener.onUPnPDeviceEvent(event);
+        }
+    }
+
+    private class DescriptionDownload implements Runnable, UPnPFetchExecutor.Droppable {
+
+        @NonNull
+        private final UPnPDevice mDevice;
+        @NonNull
+        private final UPnPScanSession mSession;
+        @Nullable
+        private final UPnPDescriptionCache mCache;
+
+        DescriptionDownload(@NonNull UPnPDevice device,
+                            @NonNull UPnPScanSession session,
+                            @Nullable UPnPDescriptionCache cache) {
+            this.mDevice = device;
+            this.mSession = session;
+            this.mCache = cache;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (mSession.isCancelled()) {
+                    return;
+                }
+                UPnPDevice described = null;
+                try {
+                    UPnPDescription description = mDevice.downloadSpecs(mTransport, mSession);
+                    if (!description.isEmpty()) {
+                        if (mCache != null) {
+                            mCache.put(mDevice, description);
+                        }
+                        described = mDevice.withDescription(description);
+                    }
+                } catch (Exception e) {
+                    if (mSession.isCancelled()) {
+                        return;
+                    }
+                    Log.w(TAG, "requestDescription.downloadSpecs.Exception: " + e.getMessage());
+                }
+                // Not retried when it failed: it would be requested again by each bind
+                onDescribed(mSession, mDevice, described, false);
+            } finally {
+                mSession.exit();
+            }
+        }
+
+        @Override
+        public void onDropped() {
+            // Dropped from a full queue: may be requested again
+            onDescribed(mSession, mDevice, null, true);
+            mSession.exit();
+        }
+    }
+
+    ///////////////
+    // EVENT BUS //
+    ///////////////
+
+    private synchronized void onUPnPDeviceEvent(@NonNull Observation observation,
+                                                @NonNull UPnPDeviceEvent event) {
+        if (observation != mObservation) {
+            // Stopped
+            return;
+        }
+        UPnPDevice device = event.getUPnPDevice();
+        mDevices.put(device.getStableId(), device);
+        // A new version of the device: its description may be requested again
+        mDescribing.remove(device.getStableId());
+        for (Listener listener : mListeners) {
+            listener.onUPnPDeviceEvent(event);
+        }
+    }
+
+    private synchronized void onUPnPDeviceRemovedEvent(@NonNull Observation observation,
+                                                       @NonNull UPnPDeviceRemovedEvent event) {
+        if (observation != mObservation) {
+            return;
+        }
+        String udn = UPnPDevice.udnOf(event.getUsn());
+        Iterator<UPnPDevice> devices = mDevices.values().iterator();
+        while (devices.hasNext()) {
+            UPnPDevice device = devices.next();
+            if (udn.equals(device.getUdn())) {
+                devices.remove();
+                mDescribing.remove(device.getStableId());
+            }
+        }
+        for (Listener listener : mListeners) {
+            listener.onUPnPDeviceRemovedEvent(event);
+        }
+    }
+
+    private synchronized void onUPnPObserverEndedEvent(@NonNull Observation observation,
+                                                       @NonNull UPnPObserverEndedEvent event) {
+        // The observation is over, nothing to close. The devices found are kept for
+        // the listeners still attached.
+        observation.mEventBus.unregister(observation);
+        if (observation == mObservation) {
+            stop(null);
+            for (Listener listener : mListeners) {
+                listener.onUPnPObserverEndedEvent(event);
+            }
+        } else if (observation.mStoppedBy != null) {
+            observation.mStoppedBy.onUPnPObserverEndedEvent(event);
+        }
+    }
+
+    private synchronized void onUPnPErrorEvent(@NonNull Observation observation,
+                                               @NonNull UPnPErrorEvent event) {
+        // The observation could not start, nothing to close
+        observation.mEventBus.unregister(observation);
+        if (observation == mObservation) {
+            stop(null);
+            for (Listener listener : mListeners) {
+                listener.onUPnPErrorEvent(event);
+            }
+        } else if (observation.mStoppedBy != null) {
+            observation.mStoppedBy.onUPnPErrorEvent(event);
+        }
+    }
+
+    /**
+     * Receives the events of one observation, on its own bus.
+     * Public for the event bus only.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public class Observation {
+
+        @NonNull
+        private final EventBus mEventBus;
+
+        @NonNull
+        private final UPnPDeviceFinder mFinder;
+
+        // The listener that stopped the observation, waiting for its end (engine lock)
+        @Nullable
+        private Listener mStoppedBy;
+
+        Observation(@NonNull EventBus eventBus, @NonNull UPnPDeviceFinder finder) {
+            this.mEventBus = eventBus;
+            this.mFinder = finder;
+        }
+
+        @SuppressWarnings("unused")
+        @Subscribe(threadMode = ThreadMode.POSTING)
+        public void onUPnPDeviceEvent(@NonNull UPnPDeviceEvent event) {
+            UPnPDiscoveryEngine.this.onUPnPDeviceEvent(this, event);
+        }
+
+        @SuppressWarnings("unused")
+        @Subscribe(threadMode = ThreadMode.POSTING)
+        public void onUPnPDeviceRemovedEvent(@NonNull UPnPDeviceRemovedEvent event) {
+            UPnPDiscoveryEngine.this.onUPnPDeviceRemovedEvent(this, event);
+        }
+
+        @SuppressWarnings("unused")
+        @Subscribe(threadMode = ThreadMode.POSTING)
+        public void onUPnPObserverEndedEvent(@NonNull UPnPObserverEndedEvent event) {
+            UPnPDiscoveryEngine.this.onUPnPObserverEndedEvent(this, event);
+        }
+
+        @SuppressWarnings("unused")
+        @Subscribe(threadMode = ThreadMode.POSTING)
+        public void onUPnPErrorEvent(@NonNull UPnPErrorEvent event) {
+            UPnPDiscoveryEngine.this.onUPnPErrorEvent(this, event);
+        }
+    }
+}
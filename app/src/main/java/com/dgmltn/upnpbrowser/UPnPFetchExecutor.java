@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the device description downloads with a capped number of worker threads.
+ * <p>
+ * Pending downloads wait in a bounded queue where devices living on a host that has
+ * not been seen yet are served before repeated hosts. When the queue is full, the
+ * overflow policy decides which download is dropped.
+ */
+public class UPnPFetchExecutor {
+
+    private static final String TAG = "UPnPFetchExecutor";
+
+    /**
+     * When the queue is full, the incoming download is dropped.
+     */
+    public static final int OVERFLOW_DISCARD_NEWEST = 0;
+
+    /**
+     * When the queue is full, the queued download with the lowest priority is dropped
+     * (unless the incoming download has an even lower priority).
+     */
+    public static final int OVERFLOW_DISCARD_LOWEST = 1;
+
+    @IntDef({OVERFLOW_DISCARD_NEWEST, OVERFLOW_DISCARD_LOWEST})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface OverflowPolicy {}
+
+    /**
+     * Implemented by the downloads that need to know when they will never run.
+     */
+    interface Droppable {
+
+        /**
+         * Called instead of run() when the download is dropped by the overflow policy or
+         * cancelled while queued. Never called from within the executor lock.
+         */
+        void onDropped();
+    }
+
+    private static final int DEFAULT_MAX_THREADS = 4;
+    private static final int DEFAULT_MAX_QUEUED = 128;
+    private static final long KEEP_ALIVE_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private static UPnPFetchExecutor sDefault;
+
+    @NonNull
+    private final ThreadPoolExecutor mExecutor;
+
+    private final int mMaxQueued;
+
+    @OverflowPolicy
+    private final int mOverflowPolicy;
+
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicInteger mDroppedCount = new AtomicInteger();
+
+    public UPnPFetchExecutor() {
+        this(DEFAULT_MAX_THREADS, DEFAULT_MAX_QUEUED, OVERFLOW_DISCARD_LOWEST);
+    }
+
+    public UPnPFetchExecutor(int maxThreads,
+                             int maxQueued,
+                             @OverflowPolicy int overflowPolicy) {
+        if (maxThreads <= 0 || maxQueued <= 0) {
+            throw new IllegalArgumentException("maxThreads and maxQueued must be positive");
+        }
+        this.mMaxQueued = maxQueued;
+        this.mOverflowPolicy = overflowPolicy;
+
+        // The queue itself is unbounded: the bound is enforced in execute() so that
+        // the overflow policy can look at the priorities of the queued downloads.
+        mExecutor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new FetchThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The executor used when none is provided to {@link UPnPHelper}.
+     * Its idle threads time out, so it costs nothing between scans.
+     */
+    @NonNull
+    public static synchronized UPnPFetchExecutor getDefault() {
+        if (sDefault == null) {
+            sDefault = new UPnPFetchExecutor();
+        }
+        return sDefault;
+    }
+
+    /**
+     * Queues a download.
+     *
+     * @param task    the download to run
+     * @param newHost true if the device lives on a host not seen before in this scan
+     * @return false if the download has been dropped because of the overflow policy
+     */
+    boolean execute(@NonNull Runnable task, boolean newHost) {
+        return execute(task, newHost, null);
+    }
+
+    /**
+     * @param owner the scan the download belongs to, see {@link #cancel(Object)}
+     */
+    boolean execute(@NonNull Runnable task, boolean newHost, @Nullable Object owner) {
+        FetchTask incoming = new FetchTask(task, newHost, mSequence.getAndIncrement(), owner);
+        FetchTask dropped = enqueue(incoming);
+        if (dropped != null) {
+            drop(dropped);
+        }
+        return dropped != incoming;
+    }
+
+    /**
+     * @return the download dropped by the overflow policy, if any
+     */
+    @Nullable
+    private synchronized FetchTask enqueue(@NonNull FetchTask incoming) {
+        PriorityBlockingQueue<Runnable> queue = (PriorityBlockingQueue<Runnable>) mExecutor.getQueue();
+        FetchTask dropped = null;
+        if (queue.size() >= mMaxQueued) {
+            if (mOverflowPolicy == OVERFLOW_DISCARD_NEWEST) {
+                return incoming;
+            }
+
+            FetchTask lowest = null;
+            for (Runnable runnable : queue) {
+                FetchTask queued = (FetchTask) runnable;
+                if (lowest == null || queued.compareTo(lowest) > 0) {
+                    lowest = queued;
+                }
+            }
+            if (lowest == null || incoming.compareTo(lowest) > 0 || !queue.remove(lowest)) {
+                return incoming;
+            }
+            dropped = lowest;
+        }
+
+        mExecutor.execute(incoming);
+        return dropped;
+    }
+
+    /**
+     * Removes the queued downloads of a scan. The running ones are not interrupted.
+     *
+     * @return the number of downloads removed
+     */
+    int cancel(@NonNull Object owner) {
+        List<FetchTask> removed = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Runnable> queued = mExecutor.getQueue().iterator();
+            while (queued.hasNext()) {
+                FetchTask task = (FetchTask) queued.next();
+                if (task.mOwner == owner) {
+                    queued.remove();
+                    removed.add(task);
+                }
+            }
+        }
+        for (FetchTask task : removed) {
+            task.onDropped();
+        }
+        return removed.size();
+    }
+
+    public int getMaxThreads() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    public int getMaxQueued() {
+        return mMaxQueued;
+    }
+
+    public int getQueuedCount() {
+        return mExecutor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    /**
+     * Total number of downloads dropped by the overflow policy.
+     */
+    public int getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    private void drop(@NonNull FetchTask task) {
+        mDroppedCount.incrementAndGet();
+        Log.w(TAG, "execute: queue full (" + mMaxQueued + "), dropping download #" + task.mSequence);
+        task.onDropped();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // FetchTask
+    ////////////////////////////////////////////////////////////////////////////////
+
+    private static class FetchTask implements Runnable, Comparable<FetchTask> {
+
+        @NonNull
+        private final Runnable mTask;
+
+        private final boolean mNewHost;
+        private final long mSequence;
+
+        @Nullable
+        private final Object mOwner;
+
+        FetchTask(@NonNull Runnable task, boolean newHost, long sequence, @Nullable Object owner) {
+            this.mTask = task;
+            this.mNewHost = newHost;
+            this.mSequence = sequence;
+            this.mOwner = owner;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+
+        void onDropped() {
+            if (mTask instanceof Droppable) {
+                ((Droppable) mTask).onDropped();
+            }
+        }
+
+        /**
+         * New hosts first, then first come first served.
+         */
+        @Override
+        public int compareTo(@NonNull FetchTask other) {
+            if (mNewHost != other.mNewHost) {
+                return mNewHost ? -1 : 1;
+            }
+            if (mSequence == other.mSequence) {
+                return 0;
+            }
+            return mSequence < other.mSequence ? -1 : 1;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // FetchThreadFactory
+    ////////////////////////////////////////////////////////////////////////////////
+
+    private static class FetchThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "UPnPFetch-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
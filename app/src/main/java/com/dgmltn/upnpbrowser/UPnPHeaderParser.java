@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.NonNull;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * Parses the headers of an SSDP message straight from the datagram bytes.
+ * <p>
+ * Header names are matched in place against the well-known SSDP headers, ignoring
+ * case, and a String is only created for the values of those headers. The other
+ * headers are skipped without any allocation.
+ */
+class UPnPHeaderParser {
+
+    static final String KEY_LOCATION = "upnp_location";
+    static final String KEY_USN = "upnp_usn";
+    static final String KEY_ST = "upnp_st";
+    static final String KEY_NT = "upnp_nt";
+    static final String KEY_NTS = "upnp_nts";
+    static final String KEY_SERVER = "upnp_server";
+    static final String KEY_CACHE_CONTROL = "upnp_cache-control";
+    static final String KEY_BOOTID = "upnp_bootid.upnp.org";
+    static final String KEY_CONFIGID = "upnp_configid.upnp.org";
+    static final String KEY_SEARCHPORT = "upnp_searchport.upnp.org";
+
+    private static final String[] KEYS = {
+            KEY_LOCATION, KEY_USN, KEY_ST, KEY_NT, KEY_NTS, KEY_SERVER,
+            KEY_CACHE_CONTROL, KEY_BOOTID, KEY_CONFIGID, KEY_SEARCHPORT
+    };
+
+    // Lower case header names, in the same order as KEYS
+    private static final byte[][] NAMES = new byte[KEYS.length][];
+
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            NAMES[i] = KEYS[i].substring("upnp_".length()).getBytes(Charset.forName("US-ASCII"));
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte COLON = ':';
+
+    private UPnPHeaderParser() {
+    }
+
+    /**
+     * @return the values of the well-known headers, under their "upnp_*" keys
+     */
+    @NonNull
+    static HashMap<String, String> parse(@NonNull byte[] data, int offset, int length) {
+        HashMap<String, String> results = new HashMap<>();
+
+        int end = offset + length;
+        int lineStart = offset;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            int colon = -1;
+            while (lineEnd < end && data[lineEnd] != CR && data[lineEnd] != LF) {
+                if (colon == -1 && data[lineEnd] == COLON) {
+                    colon = lineEnd;
+                }
+                lineEnd++;
+            }
+
+            if (colon != -1) {
+                int header = match(data, lineStart, colon);
+                if (header != -1) {
+                    int valueStart = skipSpaces(data, colon + 1, lineEnd);
+                    int valueEnd = trimSpaces(data, valueStart, lineEnd);
+                    results.put(KEYS[header], new String(data, valueStart, valueEnd - valueStart, UTF_8));
+                }
+            }
+
+            // Skip the line terminator (CRLF, or a lone LF sent by sloppy devices)
+            lineStart = lineEnd;
+            while (lineStart < end && (data[lineStart] == CR || data[lineStart] == LF)) {
+                lineStart++;
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * @return the index of the well-known header named by data[start, end), or -1
+     */
+    private static int match(@NonNull byte[] data, int start, int end) {
+        start = skipSpaces(data, start, end);
+        end = trimSpaces(data, start, end);
+        int length = end - start;
+
+        for (int i = 0; i < NAMES.length; i++) {
+            byte[] name = NAMES[i];
+            if (name.length != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && toLowerCase(data[start + j]) == name[j]) {
+                j++;
+            }
+            if (j == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int skipSpaces(@NonNull byte[] data, int start, int end) {
+        while (start < end && isSpace(data[start])) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimSpaces(@NonNull byte[] data, int start, int end) {
+        while (end > start && isSpace(data[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+}
@@ -19,16 +19,20 @@ package com.dgmltn.upnpbrowser;
 import androidx.annotation.AnyThread;
 import androidx.annotation.CallSuper;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.dgmltn.upnpbrowser.event.UPnPDeviceEvent;
+import com.dgmltn.upnpbrowser.event.UPnPDeviceRemovedEvent;
 import com.dgmltn.upnpbrowser.event.UPnPErrorEvent;
 import com.dgmltn.upnpbrowser.event.UPnPObserverEndedEvent;
 
-import org.greenrobot.eventbus.EventBus;
-import org.greenrobot.eventbus.Subscribe;
-import org.greenrobot.eventbus.ThreadMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class UPnPHelper {
 
@@ -38,40 +42,259 @@ public class UPnPHelper {
     private UPnPDeviceAdapter mAdapter;
 
     @NonNull
-    private UPnPDeviceFinder mUPnPFinder;
+    private final UPnPDiscoveryEngine mEngine;
 
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Stays attached to the engine after the end of the scan, for the descriptions
+    private volatile boolean mLazyDescriptions;
+
+    // The devices of the current batch accepted by onUPnPDeviceFound (main thread only)
+    @Nullable
+    private List<UPnPDevice> mAccepted;
+
+    // Receives the events of the engine on the discovery threads
+    @NonNull
+    private final UPnPDeviceAdapter.OnDescriptionNeededListener mOnDescriptionNeededListener =
+            new UPnPDeviceAdapter.OnDescriptionNeededListener() {
+                @Override
+                public void onDescriptionNeeded(@NonNull UPnPDevice device) {
+                    mEngine.requestDescription(device);
+                }
+            };
+
+    private final UPnPDiscoveryEngine.Listener mListener = new UPnPDiscoveryEngine.Listener() {
+        @Override
+        public void onUPnPDeviceEvent(@NonNull UPnPDeviceEvent event) {
+            UPnPHelper.this.onUPnPDeviceEvent(event);
+        }
+
+        @Override
+        public void onUPnPDeviceRemovedEvent(@NonNull UPnPDeviceRemovedEvent event) {
+            UPnPHelper.this.onUPnPDeviceRemovedEvent(event);
+        }
+
+        @Override
+        public void onUPnPObserverEndedEvent(@NonNull final UPnPObserverEndedEvent event) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    UPnPHelper.this.onUPnPObserverEndedEvent(event);
+                }
+            });
+        }
+
+        @Override
+        public void onUPnPErrorEvent(@NonNull final UPnPErrorEvent event) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    UPnPHelper.this.onUPnPErrorEvent(event);
+                }
+            });
+        }
+    };
+
+    @NonNull
+    private final UPnPDeviceBatcher mBatcher = new UPnPDeviceBatcher(new UPnPDeviceBatcher.Listener() {
+        @Override
+        public void onBatch(@NonNull List<String> removed, @NonNull List<UPnPDevice> found) {
+            for (String usn : removed) {
+                onUPnPDeviceRemoved(usn);
+            }
+            if (!found.isEmpty()) {
+                onUPnPDevicesFound(found);
+            }
+        }
+    });
+
+    /**
+     * Runs its own observation, on an engine of its own: see
+     * {@link #UPnPHelper(UPnPDeviceAdapter, UPnPDiscoveryEngine)} to share one instead.
+     */
     public UPnPHelper(@NonNull UPnPDeviceAdapter adapter) {
         this(adapter, 0);
     }
 
     public UPnPHelper(@NonNull UPnPDeviceAdapter adapter,
                       int timeoutMs) {
+        this(adapter, timeoutMs, UPnPFetchExecutor.getDefault());
+    }
+
+    /**
+     * @param fetchExecutor runs the device description downloads. It may be shared
+     *                      between several helpers to cap the total number of threads.
+     */
+    public UPnPHelper(@NonNull UPnPDeviceAdapter adapter,
+                      int timeoutMs,
+                      @NonNull UPnPFetchExecutor fetchExecutor) {
+        this(adapter, timeoutMs, fetchExecutor, UPnPTransport.getDefault());
+    }
+
+    /**
+     * @param transport the HTTP transport used to download the device descriptions
+     */
+    public UPnPHelper(@NonNull UPnPDeviceAdapter adapter,
+                      int timeoutMs,
+                      @NonNull UPnPFetchExecutor fetchExecutor,
+                      @NonNull UPnPTransport transport) {
+        this(adapter, new UPnPDiscoveryEngine(timeoutMs, fetchExecutor, transport));
+    }
+
+    /**
+     * Sharing an engine is opt-in, as its options (the setters of the helpers attached to
+     * it) are shared as well.
+     *
+     * @param engine the engine to attach to, possibly shared with other helpers
+     *               ({@link UPnPDiscoveryEngine#getDefault()}...)
+     */
+    public UPnPHelper(@NonNull UPnPDeviceAdapter adapter,
+                      @NonNull UPnPDiscoveryEngine engine) {
         this.mAdapter = adapter;
+        this.mEngine = engine;
+    }
 
-        this.mUPnPFinder = (timeoutMs > 0) ?
-                new UPnPDeviceFinder(timeoutMs) : new UPnPDeviceFinder();
+    /**
+     * Sets a persistent cache of the device descriptions: the devices already known are
+     * then published from their SSDP response alone, without downloading their description.
+     * Must be called before {@link #startObserver()}.
+     */
+    @AnyThread
+    public void setDescriptionCache(@Nullable UPnPDescriptionCache cache) {
+        mEngine.setDescriptionCache(cache);
     }
 
+    /**
+     * Also searches the devices over IPv6, in parallel with IPv4. The devices answering
+     * on both address families are only reported once.
+     * Must be called before {@link #startObserver()}.
+     */
     @AnyThread
-    public void startObserver() {
-        EventBus.getDefault().register(this);
+    public void setDualStack(boolean dualStack) {
+        mEngine.setDualStack(dualStack);
+    }
 
-        Thread thread = new Thread() {
-            @Override
-            public void run() {
-                mUPnPFinder.observe();
-            }
-        };
-        thread.start();
+    /**
+     * Keeps observing the network after the initial search, until {@link #destroyObserver()}:
+     * the devices joining, changing or leaving the network are then reported from their
+     * SSDP announcements, without any new search.
+     * <p>
+     * Most Wi-Fi drivers filter out the multicast announcements unless the application
+     * holds a {@code WifiManager.MulticastLock} (CHANGE_WIFI_MULTICAST_STATE permission)
+     * for the duration of the observation.
+     * Must be called before {@link #startObserver()}.
+     */
+    @AnyThread
+    public void setContinuous(boolean continuous) {
+        mEngine.setContinuous(continuous);
+    }
+
+    /**
+     * Sets the search targets of the observation (upnp:rootdevice by default): "ssdp:all",
+     * device types ("urn:schemas-upnp-org:device:MediaRenderer:1"...) or service types.
+     * Must be called before {@link #startObserver()}.
+     */
+    @AnyThread
+    public void setSearchTargets(@NonNull String... searchTargets) {
+        mEngine.setSearchTargets(searchTargets);
+    }
+
+    /**
+     * Ends the observation before the timeout once no new device has been found for the
+     * given period (after the last search round). Ignored in continuous mode.
+     * Must be called before {@link #startObserver()}.
+     *
+     * @param quietPeriodMs the quiet period, or 0 (default) to always wait for the timeout
+     */
+    @AnyThread
+    public void setQuietPeriod(long quietPeriodMs) {
+        mEngine.setQuietPeriod(quietPeriodMs);
+    }
+
+    /**
+     * Sets the size of the receive buffer of the sockets (SO_RCVBUF), to absorb the bursts
+     * of replies of large networks. Must be called before {@link #startObserver()}.
+     *
+     * @param bytes the size, or 0 (default) to keep the system default
+     */
+    @AnyThread
+    public void setReceiveBufferSize(int bytes) {
+        mEngine.setReceiveBufferSize(bytes);
+    }
+
+    /**
+     * Sets the size above which the SSDP messages are truncated (2048 bytes by default),
+     * for the devices sending very long headers. Must be called before {@link #startObserver()}.
+     */
+    @AnyThread
+    public void setMaxDatagramSize(int bytes) {
+        mEngine.setMaxDatagramSize(bytes);
+    }
+
+    /**
+     * Keeps the SSDP message of each device, for debugging (see {@link UPnPDevice#getRawUPnP()}).
+     * Off by default: the messages are several times larger than the devices themselves.
+     */
+    @AnyThread
+    public void setRetainRawMessages(boolean retain) {
+        mEngine.setRetainRawMessages(retain);
+    }
+
+    /**
+     * Publishes the devices as soon as they answer, from their SSDP headers only, and
+     * only downloads their description when their row is displayed (or when requested
+     * with {@link #requestDescription(UPnPDevice)}). The rows are then updated.
+     * <p>
+     * The helper then stays attached to its engine after the end of the scan, so that the
+     * rows displayed later still get their description: {@link #destroyObserver()} must
+     * be called once they are no longer needed.
+     * Must be called before {@link #startObserver()}.
+     */
+    @AnyThread
+    public void setLazyDescriptions(boolean lazy) {
+        mLazyDescriptions = lazy;
+        mEngine.setLazyDescriptions(lazy);
+        mAdapter.setOnDescriptionNeededListener(lazy ? mOnDescriptionNeededListener : null);
+    }
+
+    /**
+     * Downloads the description of a device published without it, see
+     * {@link #setLazyDescriptions(boolean)}: the device is then updated in the adapter.
+     */
+    @AnyThread
+    public void requestDescription(@NonNull UPnPDevice device) {
+        mEngine.requestDescription(device);
+    }
+
+    /**
+     * Sets how long the devices found are gathered before being added to the adapter at
+     * once (16 ms by default, about one frame). Longer windows make large scans smoother.
+     *
+     * @param windowMs the window, or 0 to add the devices as soon as the main thread is free
+     */
+    @AnyThread
+    public void setBatchWindow(long windowMs) {
+        mBatcher.setWindowMs(windowMs);
+    }
+
+    /**
+     * Attaches to the engine: the devices it has already found are reported at once,
+     * and its observation is started if needed (also when the helper is still attached
+     * after the end of a scan, in lazy mode).
+     */
+    @AnyThread
+    public void startObserver() {
+        mEngine.attach(mListener);
     }
 
+    /**
+     * Detaches from the engine: its observation is stopped if no other helper uses it,
+     * and so are the description downloads in lazy mode.
+     */
     @SuppressWarnings("WeakerAccess")
     @AnyThread
     public void destroyObserver() {
-        EventBus.getDefault().unregister(this);
-        if (mUPnPFinder.getSocket() != null) {
-            mUPnPFinder.getSocket().close();
-        }
+        mEngine.detach(mListener);
     }
 
     //////////////////////
@@ -84,10 +307,49 @@ public class UPnPHelper {
         //ignore
     }
 
+    /**
+     * Called for each device found / updated, adds it to the adapter (with the rest of its
+     * batch). Override without calling super to filter the devices out.
+     */
     @SuppressWarnings("WeakerAccess")
     @UiThread
     public void onUPnPDeviceFound(@NonNull UPnPDevice device) {
-        addToRecycler(mAdapter, device);
+        if (mAccepted != null) {
+            mAccepted.add(device);
+        } else {
+            addToRecycler(mAdapter, Collections.singletonList(device));
+        }
+    }
+
+    /**
+     * Called with the devices found / updated during a batch window, sorted: passes each
+     * of them to {@link #onUPnPDeviceFound(UPnPDevice)}, then adds the ones it accepted
+     * to the adapter at once.
+     */
+    @SuppressWarnings("WeakerAccess")
+    @UiThread
+    public void onUPnPDevicesFound(@NonNull List<UPnPDevice> devices) {
+        List<UPnPDevice> accepted = new ArrayList<>(devices.size());
+        mAccepted = accepted;
+        try {
+            for (UPnPDevice device : devices) {
+                onUPnPDeviceFound(device);
+            }
+        } finally {
+            mAccepted = null;
+        }
+        if (!accepted.isEmpty()) {
+            addToRecycler(mAdapter, accepted);
+        }
+    }
+
+    /**
+     * Called when a device has left the network (continuous observation only).
+     */
+    @SuppressWarnings("WeakerAccess")
+    @UiThread
+    public void onUPnPDeviceRemoved(@NonNull String usn) {
+        mAdapter.removeItem(usn);
     }
 
     @SuppressWarnings("WeakerAccess")
@@ -96,6 +358,17 @@ public class UPnPHelper {
         //ignore
     }
 
+    /**
+     * Called when the UPnP observation has ended, with the timings of the scan. Also called
+     * after {@link #destroyObserver()} stopped it, once its last download has returned
+     * ({@link UPnPObserverEndedEvent#isCancelled()}).
+     */
+    @SuppressWarnings("WeakerAccess")
+    @UiThread
+    public void onUPnPObserverEnded(@NonNull UPnPObserverEndedEvent event) {
+        onUPnPObserverEnded();
+    }
+
     @SuppressWarnings("WeakerAccess")
     @UiThread
     public void onUPnPObserverError() {
@@ -107,28 +380,41 @@ public class UPnPHelper {
         return mAdapter;
     }
 
-    ///////////////
-    // EVENT BUS //
-    ///////////////
+    //////////////////////
+    // DISCOVERY EVENTS //
+    //////////////////////
+
+    // Received on the threads that found the devices: batched for the main thread
 
-    @SuppressWarnings("unused")
-    @Subscribe(threadMode = ThreadMode.MAIN)
-    @UiThread
+    @SuppressWarnings("WeakerAccess")
+    @AnyThread
     public void onUPnPDeviceEvent(@NonNull UPnPDeviceEvent event) {
-        onUPnPDeviceFound(event.getUPnPDevice());
+        UPnPDevice device = event.getUPnPDevice();
+        // Build the texts of its row here, off the main thread
+        device.getDisplay();
+        mBatcher.add(device);
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    @AnyThread
+    public void onUPnPDeviceRemovedEvent(@NonNull UPnPDeviceRemovedEvent event) {
+        mBatcher.remove(event.getUsn());
     }
 
-    @SuppressWarnings("unused")
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    @SuppressWarnings("WeakerAccess")
     @UiThread
     public void onUPnPObserverEndedEvent(@NonNull UPnPObserverEndedEvent event) {
-        Log.i(TAG, "onUPnPObserveEndedEvent");
-        destroyObserver();
-        onUPnPObserverEnded();
+        Log.i(TAG, "onUPnPObserveEndedEvent: " + event.getDeviceCount() + " devices in " + event.getDurationMs() + "ms");
+        mBatcher.flush();
+        // A cancelled observation was stopped by destroyObserver(), maybe followed by a
+        // new startObserver()
+        if (!mLazyDescriptions && !event.isCancelled()) {
+            destroyObserver();
+        }
+        onUPnPObserverEnded(event);
     }
 
-    @SuppressWarnings("unused")
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    @SuppressWarnings("WeakerAccess")
     @UiThread
     public void onUPnPErrorEvent(@NonNull UPnPErrorEvent event) {
         Log.i(TAG, "onUPnPErrorEvent.errorCode: " + event.getErrorCode());
@@ -140,13 +426,14 @@ public class UPnPHelper {
     // PRIVATE METHODS //
     /////////////////////
 
+    @SuppressWarnings("unchecked")
     @UiThread
     private void addToRecycler(@NonNull UPnPDeviceAdapter adapter,
-                               @NonNull UPnPDevice device) {
+                               @NonNull List<UPnPDevice> devices) {
         if (adapter.getItemCount() == 0) {
             onFirstUPnPDeviceFound();
         }
-        adapter.addItem(device);
+        adapter.addItems(devices);
     }
 
 }
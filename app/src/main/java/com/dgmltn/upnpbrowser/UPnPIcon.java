@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Serializable;
+import java.util.Locale;
+
+/**
+ * An icon of the iconList of a device description.
+ */
+public final class UPnPIcon implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Preferred formats first
+    private static final String[] FORMATS = {"image/png", "image/jpeg", "image/gif"};
+
+    @Nullable
+    private final String mMimeType;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mDepth;
+    // As written in the description, usually relative to the LOCATION
+    @NonNull
+    private final String mUrl;
+
+    UPnPIcon(@Nullable String mimeType, int width, int height, int depth, @NonNull String url) {
+        this.mMimeType = UPnPStrings.intern(mimeType == null ? null : mimeType.trim().toLowerCase(Locale.US));
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mDepth = depth;
+        this.mUrl = url;
+    }
+
+    @Nullable
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * @return the width in pixels, or 0 if unknown
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return the height in pixels, or 0 if unknown
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the color depth in bits, or 0 if unknown
+     */
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * @return the URL of the icon, as written in the description (usually relative to the LOCATION)
+     */
+    @NonNull
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * Picks the smallest icon at least as large as the requested size, in the preferred
+     * format on a tie (PNG, then JPEG, then GIF). Without any large enough, the largest one.
+     * The icons of unknown size are only picked when no other is known.
+     *
+     * @param size the size of the square the icon is displayed in, in pixels
+     * @return null if there are no icons
+     */
+    @Nullable
+    static UPnPIcon select(@NonNull UPnPIcon[] icons, int size) {
+        UPnPIcon best = null;
+        for (UPnPIcon icon : icons) {
+            if (best == null || icon.isBetterThan(best, size)) {
+                best = icon;
+            }
+        }
+        return best;
+    }
+
+    private boolean isBetterThan(@NonNull UPnPIcon other, int size) {
+        int known = getSize() > 0 ? 1 : 0;
+        int otherKnown = other.getSize() > 0 ? 1 : 0;
+        if (known != otherKnown) {
+            return known > otherKnown;
+        }
+        boolean large = getSize() >= size;
+        boolean otherLarge = other.getSize() >= size;
+        if (large != otherLarge) {
+            return large;
+        }
+        if (getSize() != other.getSize()) {
+            // The smallest of the large enough ones, the largest of the others
+            return large == (getSize() < other.getSize());
+        }
+        if (getFormatRank() != other.getFormatRank()) {
+            return getFormatRank() < other.getFormatRank();
+        }
+        return mDepth > other.mDepth;
+    }
+
+    /**
+     * @return the side of the square the icon fits in once displayed
+     */
+    private int getSize() {
+        return Math.min(mWidth, mHeight);
+    }
+
+    private int getFormatRank() {
+        for (int i = 0; i < FORMATS.length; i++) {
+            if (FORMATS[i].equals(mMimeType)) {
+                return i;
+            }
+        }
+        return FORMATS.length;
+    }
+
+    int getFootprint() {
+        return UPnPDevice.OBJECT_SIZE + 2 * UPnPDevice.REFERENCE_SIZE + 3 * 4
+                + UPnPDevice.sizeOf(mMimeType) + UPnPDevice.sizeOf(mUrl);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof UPnPIcon)) {
+            return false;
+        }
+        UPnPIcon other = (UPnPIcon) o;
+        return mWidth == other.mWidth
+                && mHeight == other.mHeight
+                && mDepth == other.mDepth
+                && mUrl.equals(other.mUrl)
+                && (mMimeType == null ? other.mMimeType == null : mMimeType.equals(other.mMimeType));
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = mUrl.hashCode();
+        hash = 31 * hash + (mMimeType == null ? 0 : mMimeType.hashCode());
+        hash = 31 * hash + mWidth;
+        hash = 31 * hash + mHeight;
+        return 31 * hash + mDepth;
+    }
+
+    @Override
+    public String toString() {
+        return "UPnPIcon {" +
+                "mimeType: " + mMimeType +
+                ", width: " + mWidth +
+                ", height: " + mHeight +
+                ", depth: " + mDepth +
+                ", url: " + mUrl +
+                "}";
+    }
+}
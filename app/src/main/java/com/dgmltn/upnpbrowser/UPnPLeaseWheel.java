@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tracks the leases of the devices (the CACHE-CONTROL max-age of their SSDP messages)
+ * on a hashed timer wheel.
+ * <p>
+ * Each lease is hooked in the slot of its expiry tick, modulo the wheel size: renewing
+ * or cancelling a lease is O(1), and each tick only looks at the leases of one slot,
+ * whatever the number of devices.
+ * <p>
+ * Not thread safe.
+ */
+class UPnPLeaseWheel {
+
+    private final long mTickMs;
+    private final int mMask;
+
+    @NonNull
+    private final Lease[] mSlots;
+
+    private final HashMap<String, Lease> mLeases = new HashMap<>();
+
+    private final long mStartMs;
+    private long mCurrentTick;
+
+    /**
+     * @param tickMs    resolution of the expiries
+     * @param slotCount number of slots, rounded up to a power of two
+     * @param nowMs     the current time, on the same clock as the other calls
+     */
+    UPnPLeaseWheel(long tickMs, int slotCount, long nowMs) {
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.mTickMs = tickMs;
+        this.mMask = size - 1;
+        this.mSlots = new Lease[size];
+        this.mStartMs = nowMs;
+    }
+
+    long getTickMs() {
+        return mTickMs;
+    }
+
+    int size() {
+        return mLeases.size();
+    }
+
+    /**
+     * Starts or renews the lease of a device.
+     */
+    void renew(@NonNull String key, long durationMs) {
+        Lease lease = mLeases.get(key);
+        if (lease == null) {
+            lease = new Lease(key);
+            mLeases.put(key, lease);
+        } else {
+            unlink(lease);
+        }
+        // Round up: a lease never expires before its duration
+        lease.mExpiryTick = mCurrentTick + Math.max(1, (durationMs + mTickMs - 1) / mTickMs);
+        link(lease);
+    }
+
+    void cancel(@NonNull String key) {
+        Lease lease = mLeases.remove(key);
+        if (lease != null) {
+            unlink(lease);
+        }
+    }
+
+    /**
+     * Advances the wheel up to the given time.
+     *
+     * @param expired receives the keys of the leases that have expired
+     */
+    void advance(long nowMs, @NonNull List<String> expired) {
+        long targetTick = (nowMs - mStartMs) / mTickMs;
+        while (mCurrentTick < targetTick) {
+            mCurrentTick++;
+            Lease lease = mSlots[(int) (mCurrentTick & mMask)];
+            while (lease != null) {
+                Lease next = lease.mNext;
+                if (lease.mExpiryTick <= mCurrentTick) {
+                    unlink(lease);
+                    mLeases.remove(lease.mKey);
+                    expired.add(lease.mKey);
+                }
+                lease = next;
+            }
+        }
+    }
+
+    private void link(@NonNull Lease lease) {
+        int slot = (int) (lease.mExpiryTick & mMask);
+        Lease head = mSlots[slot];
+        lease.mPrevious = null;
+        lease.mNext = head;
+        if (head != null) {
+            head.mPrevious = lease;
+        }
+        mSlots[slot] = lease;
+    }
+
+    private void unlink(@NonNull Lease lease) {
+        if (lease.mPrevious != null) {
+            lease.mPrevious.mNext = lease.mNext;
+        } else {
+            mSlots[(int) (lease.mExpiryTick & mMask)] = lease.mNext;
+        }
+        if (lease.mNext != null) {
+            lease.mNext.mPrevious = lease.mPrevious;
+        }
+        lease.mPrevious = null;
+        lease.mNext = null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // Lease
+    ////////////////////////////////////////////////////////////////////////////////
+
+    private static class Lease {
+
+        @NonNull
+        private final String mKey;
+
+        private long mExpiryTick;
+
+        @Nullable
+        private Lease mPrevious;
+
+        @Nullable
+        private Lease mNext;
+
+        Lease(@NonNull String key) {
+            this.mKey = key;
+        }
+    }
+}
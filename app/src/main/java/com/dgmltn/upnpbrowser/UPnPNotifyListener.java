@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.util.List;
+
+/**
+ * Listens to the SSDP announcements (NOTIFY ssdp:alive / ssdp:byebye / ssdp:update)
+ * multicast by the devices on 239.255.255.250:1900, and on the IPv6 SSDP groups in
+ * dual-stack mode.
+ * <p>
+ * Runs its own thread until {@link #close()} is called.
+ */
+class UPnPNotifyListener implements Runnable {
+
+    private static final String TAG = "UPnPNotifyListener";
+
+    interface Callback {
+
+        /**
+         * Called on the listener thread, which should not be held up: the datagrams
+         * keep piling up in the socket meanwhile. The data is only valid during the call.
+         *
+         * @param intf the interface the message has been received from, if it could be guessed
+         */
+        void onNotify(@NonNull byte[] data, int offset, int length, @Nullable NetworkInterface intf);
+    }
+
+    @NonNull
+    private final List<NetworkInterface> mInterfaces;
+
+    @NonNull
+    private final Callback mCallback;
+
+    @NonNull
+    private final MulticastSocket mSocket;
+
+    private final int mMaxDatagramSize;
+
+    private volatile boolean mClosed;
+
+    UPnPNotifyListener(@NonNull List<NetworkInterface> interfaces,
+                       boolean dualStack,
+                       int maxDatagramSize,
+                       int receiveBufferSize,
+                       @NonNull Callback callback) throws IOException {
+        this.mInterfaces = interfaces;
+        this.mMaxDatagramSize = maxDatagramSize;
+        this.mCallback = callback;
+
+        mSocket = new MulticastSocket(null);
+        mSocket.setReuseAddress(true);
+        if (receiveBufferSize > 0) {
+            mSocket.setReceiveBufferSize(receiveBufferSize);
+        }
+        mSocket.bind(new InetSocketAddress(UPnPDeviceFinder.PORT));
+
+        int joined = 0;
+        for (NetworkInterface intf : interfaces) {
+            joined += join(UPnPDeviceFinder.MULTICAST_ADDRESS, intf);
+            if (dualStack) {
+                joined += join(UPnPDeviceFinder.MULTICAST_ADDRESS_V6_LINK_LOCAL, intf);
+                joined += join(UPnPDeviceFinder.MULTICAST_ADDRESS_V6_SITE_LOCAL, intf);
+            }
+        }
+        if (joined == 0) {
+            mSocket.close();
+            throw new IOException("could not join any SSDP group");
+        }
+    }
+
+    private int join(@NonNull String group, @NonNull NetworkInterface intf) {
+        try {
+            mSocket.joinGroup(new InetSocketAddress(group, UPnPDeviceFinder.PORT), intf);
+            Log.i(TAG, "join: " + group + " on " + intf.getName());
+            return 1;
+        } catch (IOException e) {
+            Log.w(TAG, "join: " + group + " on " + intf.getName() + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    void start() {
+        Thread thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        byte[] buf = new byte[mMaxDatagramSize];
+        DatagramPacket dp = new DatagramPacket(buf, buf.length);
+        try {
+            while (!mClosed) {
+                dp.setLength(buf.length);
+                mSocket.receive(dp);
+                mCallback.onNotify(dp.getData(), dp.getOffset(), dp.getLength(), interfaceOf(dp.getAddress()));
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                Log.w(TAG, "run.IOException: " + e.getMessage());
+            }
+        } finally {
+            mSocket.close();
+        }
+    }
+
+    void close() {
+        mClosed = true;
+        mSocket.close();
+    }
+
+    /**
+     * The socket is shared by all the interfaces: guess the interface of a sender
+     * from the subnets of the interfaces.
+     */
+    @Nullable
+    private NetworkInterface interfaceOf(@NonNull InetAddress sender) {
+        byte[] senderBytes = sender.getAddress();
+        for (NetworkInterface intf : mInterfaces) {
+            for (InterfaceAddress interfaceAddress : intf.getInterfaceAddresses()) {
+                InetAddress address = interfaceAddress.getAddress();
+                if ((address instanceof Inet4Address) != (sender instanceof Inet4Address)) {
+                    continue;
+                }
+                if (sameSubnet(senderBytes, address.getAddress(), interfaceAddress.getNetworkPrefixLength())) {
+                    return intf;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean sameSubnet(@NonNull byte[] lhs, @NonNull byte[] rhs, int prefixLength) {
+        for (int i = 0; i < lhs.length && prefixLength > 0; i++, prefixLength -= 8) {
+            int mask = prefixLength >= 8 ? 0xff : (0xff << (8 - prefixLength)) & 0xff;
+            if ((lhs[i] & mask) != (rhs[i] & mask)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.net.NetworkInterface;
+
+/**
+ * Hands the received datagrams over from the socket readers to the parsing thread.
+ * <p>
+ * The readers only copy each datagram into one of the slots of the ring and go back
+ * to the socket at once, so that the kernel receive buffer is emptied as fast as
+ * possible during the bursts of replies. A single consumer parses the slots in order,
+ * outside of the lock.
+ * <p>
+ * The slot buffers are allocated on first use and recycled once parsed: the ring only
+ * grows up to the largest burst, and receiving allocates nothing afterwards.
+ * <p>
+ * When the ring is full the newest datagram is dropped and counted. A datagram larger
+ * than a slot (the readers receive one byte more than the slot size to detect it) is
+ * cut after its last complete header line, and counted as truncated.
+ */
+class UPnPReceiveRing {
+
+    interface Consumer {
+
+        /**
+         * Called on the consumer thread. The data is only valid during the call.
+         */
+        void onDatagram(@NonNull byte[] data, int offset, int length, @Nullable NetworkInterface intf);
+
+        /**
+         * Called on the consumer thread about every tick, between two datagrams.
+         */
+        void onTick(long nowMs);
+    }
+
+    @NonNull
+    private final byte[][] mSlots;
+
+    private final int mSlotSize;
+
+    @NonNull
+    private final int[] mLengths;
+
+    @NonNull
+    private final NetworkInterface[] mInterfaces;
+
+    private int mHead;
+    private int mCount;
+    private boolean mClosed;
+
+    private int mReceivedCount;
+    private int mOverflowCount;
+    private int mPeakCount;
+    private int mTruncatedCount;
+    private int mAllocatedCount;
+
+    /**
+     * @param slotCount the maximum number of datagrams waiting to be parsed
+     * @param slotSize  the maximum size of a datagram
+     */
+    UPnPReceiveRing(int slotCount, int slotSize) {
+        this.mSlots = new byte[slotCount][];
+        this.mSlotSize = slotSize;
+        this.mLengths = new int[slotCount];
+        this.mInterfaces = new NetworkInterface[slotCount];
+    }
+
+    /**
+     * Copies a datagram into the ring. May be called from any reader thread.
+     *
+     * @return false if the ring was full (or closed) and the datagram has been dropped
+     */
+    synchronized boolean offer(@NonNull byte[] data, int offset, int length, @Nullable NetworkInterface intf) {
+        if (mClosed) {
+            return false;
+        }
+        mReceivedCount++;
+        if (mCount == mSlots.length) {
+            mOverflowCount++;
+            return false;
+        }
+        int tail = (mHead + mCount) % mSlots.length;
+        if (mSlots[tail] == null) {
+            mSlots[tail] = new byte[mSlotSize];
+            mAllocatedCount++;
+        }
+        int copied = length;
+        if (length > mSlotSize) {
+            mTruncatedCount++;
+            copied = lastLineEnd(data, offset, mSlotSize);
+        }
+        System.arraycopy(data, offset, mSlots[tail], 0, copied);
+        mLengths[tail] = copied;
+        mInterfaces[tail] = intf;
+        mCount++;
+        mPeakCount = Math.max(mPeakCount, mCount);
+        if (mCount == 1) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Hands the datagrams to the consumer as they arrive, until the ring is closed and
+     * emptied, and ticks the consumer every tickMs meanwhile. Must be called from a
+     * single thread.
+     */
+    void drain(@NonNull Consumer consumer, long tickMs) throws InterruptedException {
+        long nextTickMs = SystemClock.elapsedRealtime() + tickMs;
+        while (true) {
+            int head = -1;
+            synchronized (this) {
+                while (mCount == 0) {
+                    if (mClosed) {
+                        return;
+                    }
+                    long waitMs = nextTickMs - SystemClock.elapsedRealtime();
+                    if (waitMs <= 0) {
+                        break;
+                    }
+                    wait(waitMs);
+                }
+                if (mCount > 0) {
+                    head = mHead;
+                }
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            if (now >= nextTickMs) {
+                consumer.onTick(now);
+                nextTickMs = now + tickMs;
+            }
+            if (head < 0) {
+                continue;
+            }
+
+            // The readers never write a slot that has not been released
+            consumer.onDatagram(mSlots[head], 0, mLengths[head], mInterfaces[head]);
+
+            synchronized (this) {
+                mInterfaces[head] = null;
+                mHead = (head + 1) % mSlots.length;
+                mCount--;
+            }
+        }
+    }
+
+    /**
+     * @return the length of data[offset, offset + length) up to its last line terminator
+     */
+    private static int lastLineEnd(@NonNull byte[] data, int offset, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (data[offset + i] == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Stops accepting datagrams. The consumer still gets the pending ones.
+     */
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    synchronized int getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    synchronized int getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    synchronized int getPeakCount() {
+        return mPeakCount;
+    }
+
+    synchronized int getTruncatedCount() {
+        return mTruncatedCount;
+    }
+
+    synchronized int getAllocatedCount() {
+        return mAllocatedCount;
+    }
+}
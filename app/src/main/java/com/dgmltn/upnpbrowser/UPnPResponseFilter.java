@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.NonNull;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suppresses the duplicate SSDP messages.
+ * <p>
+ * Devices usually answer the same M-SEARCH several times. Byte-identical repeats
+ * received within a short window are recognized from a fingerprint of the datagram,
+ * before any parsing. The messages that differ only by their volatile headers
+ * (DATE...) are then coalesced on the UDN part of their USN (or their LOCATION when
+ * they have none), so that a description is downloaded only once, until the device
+ * changes its BOOTID.UPNP.ORG or CONFIGID.UPNP.ORG, moves to another LOCATION
+ * (a UPnP 1.0 device after a DHCP renewal...), or says goodbye.
+ * <p>
+ * A dual-stack device is kept with the location of the address family that answered
+ * first: its location in the other family is not taken as a move. The embedded devices
+ * and services answering a broad search (ssdp:all) share the LOCATION of their root
+ * device, and are coalesced with it.
+ */
+class UPnPResponseFilter {
+
+    static final int CLAIM_NONE = 0;
+    static final int CLAIM_NEW = 1;
+    static final int CLAIM_CHANGED = 2;
+
+    private static final int MAX_FINGERPRINTS = 1024;
+    private static final long REPEAT_WINDOW_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Fingerprint => reception time
+    private final Map<Long, Long> mFingerprints =
+            new LinkedHashMap<Long, Long>(64, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                    return size() > MAX_FINGERPRINTS;
+                }
+            };
+
+    // Device key => claimed message
+    private final Map<String, Claim> mClaims = new HashMap<>();
+
+    // LOCATION => device key
+    private final Map<String, String> mLocations = new HashMap<>();
+
+    private int mRepeatCount;
+    private int mCoalescedCount;
+
+    /**
+     * @return true if the exact same datagram has been received in the last seconds
+     */
+    synchronized boolean isRepeat(@NonNull byte[] data, int offset, int length) {
+        long fingerprint = fingerprint(data, offset, length);
+        long now = SystemClock.elapsedRealtime();
+        Long received = mFingerprints.get(fingerprint);
+        if (received != null && now - received < REPEAT_WINDOW_MS) {
+            mRepeatCount++;
+            return true;
+        }
+        mFingerprints.remove(fingerprint);
+        mFingerprints.put(fingerprint, now);
+        return false;
+    }
+
+    /**
+     * Claims the description download of a device.
+     *
+     * @return {@link #CLAIM_NEW} or {@link #CLAIM_CHANGED} (new BOOTID / CONFIGID, or new
+     * location in the same address family) if the caller should download the description,
+     * {@link #CLAIM_NONE} if a download for the same device is already running or done
+     */
+    synchronized int claim(@NonNull UPnPDevice device) {
+        String key = keyOf(device);
+        String location = device.getLocation().toExternalForm();
+
+        String owner = mLocations.get(location);
+        if (owner != null && !owner.equals(key)) {
+            mCoalescedCount++;
+            return CLAIM_NONE;
+        }
+
+        Claim previous = mClaims.get(key);
+        if (previous == null) {
+            mClaims.put(key, new Claim(location, signatureOf(device)));
+            mLocations.put(location, key);
+            return CLAIM_NEW;
+        }
+        if (!previous.mSignature.equals(signatureOf(device))
+                || (!previous.mLocation.equals(location)
+                && isIpv6(previous.mLocation) == isIpv6(location))) {
+            mLocations.remove(previous.mLocation);
+            mClaims.put(key, new Claim(location, signatureOf(device)));
+            mLocations.put(location, key);
+            return CLAIM_CHANGED;
+        }
+        mCoalescedCount++;
+        return CLAIM_NONE;
+    }
+
+    /**
+     * @return false if the device has said goodbye or changed since it was claimed
+     */
+    synchronized boolean isCurrent(@NonNull UPnPDevice device) {
+        Claim claim = mClaims.get(keyOf(device));
+        return claim != null
+                && claim.mLocation.equals(device.getLocation().toExternalForm())
+                && claim.mSignature.equals(signatureOf(device));
+    }
+
+    /**
+     * Forgets a device that has said goodbye.
+     *
+     * @param usn the USN or UDN of the device
+     * @return true if the device was known
+     */
+    synchronized boolean release(@NonNull String usn) {
+        Claim claim = mClaims.remove(UPnPDevice.udnOf(usn));
+        if (claim == null) {
+            return false;
+        }
+        mLocations.remove(claim.mLocation);
+        return true;
+    }
+
+    synchronized int getRepeatCount() {
+        return mRepeatCount;
+    }
+
+    synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    @NonNull
+    private static String keyOf(@NonNull UPnPDevice device) {
+        String udn = device.getUdn();
+        return (udn == null) ? device.getLocation().toExternalForm() : udn;
+    }
+
+    /**
+     * @param location a LOCATION url, whose IPv6 host is between brackets
+     */
+    private static boolean isIpv6(@NonNull String location) {
+        int start = location.indexOf("://");
+        return start >= 0 && location.startsWith("[", start + 3);
+    }
+
+    @NonNull
+    private static String signatureOf(@NonNull UPnPDevice device) {
+        return device.getBootId() + "|" + device.getConfigId();
+    }
+
+    /**
+     * 64 bits FNV-1a hash, mixed with the length.
+     */
+    private static long fingerprint(@NonNull byte[] data, int offset, int length) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= data[i] & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash ^ length;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // Claim
+    ////////////////////////////////////////////////////////////////////////////////
+
+    private static class Claim {
+
+        @NonNull
+        private final String mLocation;
+
+        @NonNull
+        private final String mSignature;
+
+        Claim(@NonNull String location, @NonNull String signature) {
+            this.mLocation = location;
+            this.mSignature = signature;
+        }
+    }
+}
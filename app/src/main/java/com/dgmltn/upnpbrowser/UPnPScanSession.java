@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import okhttp3.Call;
+
+/**
+ * Owns the work started by one observation: its queued and running downloads, and
+ * their HTTP calls.
+ * <p>
+ * Cancelling the session cancels the calls in flight, so that the blocked downloads
+ * fail at once instead of running to completion. The session is quiescent once the
+ * observation has stopped receiving and the last of its downloads has returned.
+ */
+class UPnPScanSession {
+
+    @NonNull
+    private final HashSet<Call> mCalls = new HashSet<>();
+
+    private int mPendingCount;
+    private int mCancelledCount;
+    private boolean mCancelled;
+    private boolean mFinished;
+
+    @Nullable
+    private Runnable mOnQuiescent;
+
+    synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Accounts for a new download.
+     *
+     * @return false if the session has been cancelled: the download must not be started
+     */
+    synchronized boolean enter() {
+        if (mCancelled) {
+            return false;
+        }
+        mPendingCount++;
+        return true;
+    }
+
+    /**
+     * Accounts for the end of a download (run, dropped or cancelled while queued).
+     */
+    void exit() {
+        Runnable onQuiescent;
+        synchronized (this) {
+            mPendingCount--;
+            if (mCancelled) {
+                mCancelledCount++;
+            }
+            onQuiescent = takeOnQuiescent();
+        }
+        if (onQuiescent != null) {
+            onQuiescent.run();
+        }
+    }
+
+    /**
+     * Tracks an HTTP call of a download.
+     *
+     * @return false if the session has been cancelled: the call must not be executed
+     */
+    synchronized boolean register(@NonNull Call call) {
+        if (mCancelled) {
+            return false;
+        }
+        mCalls.add(call);
+        return true;
+    }
+
+    synchronized void unregister(@NonNull Call call) {
+        mCalls.remove(call);
+    }
+
+    /**
+     * Cancels the calls in flight. The downloads still queued must be removed by the caller.
+     */
+    void cancel() {
+        List<Call> calls;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            calls = new ArrayList<>(mCalls);
+            mCalls.clear();
+        }
+        for (Call call : calls) {
+            call.cancel();
+        }
+    }
+
+    /**
+     * Called once the observation has stopped receiving.
+     *
+     * @param onQuiescent run once the last download has returned, possibly right away
+     */
+    void finish(@NonNull Runnable onQuiescent) {
+        synchronized (this) {
+            mFinished = true;
+            mOnQuiescent = onQuiescent;
+            onQuiescent = takeOnQuiescent();
+        }
+        if (onQuiescent != null) {
+            onQuiescent.run();
+        }
+    }
+
+    synchronized int getCancelledCount() {
+        return mCancelledCount;
+    }
+
+    @Nullable
+    private Runnable takeOnQuiescent() {
+        if (!mFinished || mPendingCount > 0) {
+            return null;
+        }
+        Runnable onQuiescent = mOnQuiescent;
+        mOnQuiescent = null;
+        return onQuiescent;
+    }
+}
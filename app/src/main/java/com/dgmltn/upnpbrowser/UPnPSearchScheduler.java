@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the M-SEARCH messages are (re)sent, and with which MX.
+ * <p>
+ * A lost UDP datagram should not hide a device for the whole scan: the search is
+ * sent in several rounds. The first round asks for a short MX so that the devices
+ * answer quickly. Each following round is sent once the previous MX has elapsed,
+ * and doubles the MX (up to the maximum) only if new devices kept arriving during
+ * the previous round, to spread the replies of crowded networks.
+ */
+class UPnPSearchScheduler {
+
+    static final int MIN_MX = 1;
+
+    // UDA 1.1: MX should be between 1 and 5 seconds
+    static final int MAX_MX = 5;
+
+    static final int DEFAULT_ROUNDS = 4;
+
+    private final int mMaxMx;
+    private final int mRounds;
+
+    private int mMx = MIN_MX;
+    private int mSentRounds;
+    private long mNextRoundMs;
+    private int mNewDevices;
+
+    /**
+     * @param maxMx  the largest MX to ask for, in seconds
+     * @param rounds the number of search rounds
+     * @param nowMs  the time of the first round
+     */
+    UPnPSearchScheduler(int maxMx, int rounds, long nowMs) {
+        this.mMaxMx = Math.max(MIN_MX, Math.min(MAX_MX, maxMx));
+        this.mRounds = rounds;
+        this.mNextRoundMs = nowMs;
+    }
+
+    synchronized boolean isDue(long nowMs) {
+        return mSentRounds < mRounds && nowMs >= mNextRoundMs;
+    }
+
+    /**
+     * @return the delay until the next round, or Long.MAX_VALUE if all the rounds have been sent
+     */
+    synchronized long getDelayMs(long nowMs) {
+        if (mSentRounds >= mRounds) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, mNextRoundMs - nowMs);
+    }
+
+    /**
+     * Starts a round.
+     *
+     * @return the MX of the round, in seconds
+     */
+    synchronized int startRound(long nowMs) {
+        if (mSentRounds > 0 && mNewDevices > 0) {
+            mMx = Math.min(mMx * 2, mMaxMx);
+        }
+        mSentRounds++;
+        mNewDevices = 0;
+        mNextRoundMs = nowMs + TimeUnit.SECONDS.toMillis(mMx);
+        return mMx;
+    }
+
+    /**
+     * @return true once all the rounds have been sent and the MX of the last one has elapsed
+     */
+    synchronized boolean isDone(long nowMs) {
+        return mSentRounds >= mRounds && nowMs >= mNextRoundMs;
+    }
+
+    synchronized void onNewDevice() {
+        mNewDevices++;
+    }
+
+    synchronized int getSentRounds() {
+        return mSentRounds;
+    }
+}
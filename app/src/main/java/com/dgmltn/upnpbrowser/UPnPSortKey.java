@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.NonNull;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+
+/**
+ * Position of a device in the list, computed once from its LOCATION: IPv4 addresses
+ * first, then IPv6 addresses, then host names, each in numeric order, then by port
+ * and path.
+ * <p>
+ * Only address literals are decoded, never resolved: comparing two keys costs no I/O
+ * and allocates nothing.
+ */
+final class UPnPSortKey implements Comparable<UPnPSortKey> {
+
+    private static final int FAMILY_IPV4 = 0;
+    private static final int FAMILY_IPV6 = 1;
+    private static final int FAMILY_NAME = 2;
+
+    private final int mFamily;
+
+    // Address bytes, big endian (IPv4 in the low bits), or the hash of the host name
+    private final long mHigh;
+    private final long mLow;
+
+    private final int mPort;
+    private final int mPathHash;
+
+    // Tie breaker, for the hash collisions
+    @NonNull
+    private final String mLocation;
+
+    private UPnPSortKey(int family, long high, long low, int port, int pathHash, @NonNull String location) {
+        this.mFamily = family;
+        this.mHigh = high;
+        this.mLow = low;
+        this.mPort = port;
+        this.mPathHash = pathHash;
+        this.mLocation = location;
+    }
+
+    @NonNull
+    static UPnPSortKey of(@NonNull URL location) {
+        String host = location.getHost();
+        int port = location.getPort() == -1 ? location.getDefaultPort() : location.getPort();
+        int pathHash = location.getPath().hashCode();
+        String external = location.toExternalForm();
+
+        long ipv4 = parseIpv4(host);
+        if (ipv4 != -1) {
+            return new UPnPSortKey(FAMILY_IPV4, 0, ipv4, port, pathHash, external);
+        }
+
+        byte[] ipv6 = parseIpv6(host);
+        if (ipv6 != null && ipv6.length == 4) {
+            // IPv4-mapped address
+            return new UPnPSortKey(FAMILY_IPV4, 0, pack(ipv6, 0, 4), port, pathHash, external);
+        }
+        if (ipv6 != null) {
+            return new UPnPSortKey(FAMILY_IPV6, pack(ipv6, 0, 8), pack(ipv6, 8, 8), port, pathHash, external);
+        }
+
+        return new UPnPSortKey(FAMILY_NAME, 0, host.hashCode(), port, pathHash, external);
+    }
+
+    /**
+     * @return the approximate heap size of the key
+     */
+    int getFootprint() {
+        return UPnPDevice.OBJECT_SIZE + 2 * 8 + 4 * 3 + UPnPDevice.REFERENCE_SIZE + UPnPDevice.sizeOf(mLocation);
+    }
+
+    @Override
+    public int compareTo(@NonNull UPnPSortKey other) {
+        if (mFamily != other.mFamily) {
+            return mFamily < other.mFamily ? -1 : 1;
+        }
+        if (mHigh != other.mHigh) {
+            return compareUnsigned(mHigh, other.mHigh);
+        }
+        if (mLow != other.mLow) {
+            return compareUnsigned(mLow, other.mLow);
+        }
+        if (mPort != other.mPort) {
+            return mPort < other.mPort ? -1 : 1;
+        }
+        if (mPathHash != other.mPathHash) {
+            return mPathHash < other.mPathHash ? -1 : 1;
+        }
+        return mLocation.compareTo(other.mLocation);
+    }
+
+    private static int compareUnsigned(long lhs, long rhs) {
+        return (lhs ^ Long.MIN_VALUE) < (rhs ^ Long.MIN_VALUE) ? -1 : 1;
+    }
+
+    /**
+     * @return the dotted quad as an unsigned 32 bits value, or -1 if it is not one
+     */
+    private static long parseIpv4(@NonNull String host) {
+        long address = 0;
+        int octets = 0;
+        int value = -1;
+        for (int i = 0; i <= host.length(); i++) {
+            char c = i < host.length() ? host.charAt(i) : '.';
+            if (c >= '0' && c <= '9') {
+                value = (value == -1 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && value != -1 && octets < 4) {
+                address = (address << 8) | value;
+                octets++;
+                value = -1;
+            } else {
+                return -1;
+            }
+        }
+        return octets == 4 ? address : -1;
+    }
+
+    /**
+     * @return the bytes of an IPv6 literal ("[fe80::1]"), 4 of them for an IPv4-mapped
+     * address, or null if it is not one
+     */
+    private static byte[] parseIpv6(@NonNull String host) {
+        if (host.indexOf(':') == -1) {
+            // Not a literal: never resolve a host name here
+            return null;
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        int zone = host.indexOf('%');
+        if (zone != -1) {
+            host = host.substring(0, zone);
+        }
+        try {
+            // A literal containing a colon is decoded without any lookup
+            return InetAddress.getByName(host).getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static long pack(@NonNull byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares the values repeated by many devices (SERVER, device type, manufacturer, network
+ * interface...), so that a thousand devices of the same model hold one copy of each.
+ * <p>
+ * Only the first values seen are pooled: the pool cannot grow without bounds on a
+ * network full of unique values.
+ */
+final class UPnPStrings {
+
+    private static final int MAX_POOLED = 4096;
+
+    private static final ConcurrentHashMap<String, String> sPool = new ConcurrentHashMap<>();
+
+    private UPnPStrings() {
+    }
+
+    /**
+     * @return the pooled copy of the value, or the value itself
+     */
+    @Nullable
+    static String intern(@Nullable String value) {
+        if (value == null) {
+            return null;
+        }
+        String pooled = sPool.get(value);
+        if (pooled != null) {
+            return pooled;
+        }
+        if (sPool.size() >= MAX_POOLED) {
+            return value;
+        }
+        pooled = sPool.putIfAbsent(value, value);
+        return pooled != null ? pooled : value;
+    }
+
+    /**
+     * @return true if the value is the pooled copy: it is shared, and not accounted to the devices
+     */
+    static boolean isPooled(@Nullable String value) {
+        return value != null && sPool.get(value) == value;
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2015 Doug Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dgmltn.upnpbrowser;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * HTTP transport shared by all the description downloads.
+ * <p>
+ * A single {@link OkHttpClient} keeps the connections alive between the devices of
+ * a same host, and the number of concurrent requests per host is capped so that
+ * small embedded web servers are not overwhelmed. OkHttp transparently asks for
+ * gzip content and decompresses it, as long as no Accept-Encoding header is set here.
+ * <p>
+ * The ETag / Last-Modified validators of each description are remembered, with the
+ * value read from it, for each url and reader: re-scans send conditional requests and
+ * unchanged descriptions come back as a 304 without body.
+ * <p>
+ * OkHttp does not accept the scope of IPv6 link-local literals (fe80::1%wlan0) in
+ * its urls: the scope of such hosts is remembered when their SSDP response is received
+ * and applied when the host is resolved.
+ */
+public class UPnPTransport {
+
+    private static final String TAG = "UPnPTransport";
+
+    private static final long DEFAULT_CONNECT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(3);
+    private static final long DEFAULT_READ_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 2;
+
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_MS = TimeUnit.MINUTES.toMillis(1);
+
+    // As many as the description cache: the validators of a whole fleet survive a scan
+    private static final int DEFAULT_MAX_VALIDATED_URLS = 512;
+
+    private static UPnPTransport sDefault;
+
+    @NonNull
+    private final OkHttpClient mClient;
+
+    private final int mMaxRequestsPerHost;
+
+    private final ConcurrentHashMap<String, Semaphore> mHostPermits = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, NetworkInterface> mLinkLocalScopes = new ConcurrentHashMap<>();
+
+    private final int mMaxValidatedUrls;
+
+    // Url => the validators of its description, one per reader
+    private final Map<String, Validated[]> mValidated =
+            new LinkedHashMap<String, Validated[]>(32, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Validated[]> eldest) {
+                    return size() > mMaxValidatedUrls;
+                }
+            };
+
+    public UPnPTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS, DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+
+    public UPnPTransport(long connectTimeoutMs,
+                         long readTimeoutMs,
+                         int maxRequestsPerHost) {
+        this(connectTimeoutMs, readTimeoutMs, maxRequestsPerHost, DEFAULT_MAX_VALIDATED_URLS);
+    }
+
+    /**
+     * @param maxValidatedUrls the number of descriptions whose validators are remembered,
+     *                         at least the number of devices of the network for the
+     *                         conditional requests to hit from one scan to the next
+     */
+    public UPnPTransport(long connectTimeoutMs,
+                         long readTimeoutMs,
+                         int maxRequestsPerHost,
+                         int maxValidatedUrls) {
+        if (maxRequestsPerHost <= 0) {
+            throw new IllegalArgumentException("maxRequestsPerHost must be positive");
+        }
+        if (maxValidatedUrls < 0) {
+            throw new IllegalArgumentException("maxValidatedUrls must not be negative");
+        }
+        this.mMaxRequestsPerHost = maxRequestsPerHost;
+        this.mMaxValidatedUrls = maxValidatedUrls;
+
+        mClient = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS))
+                .connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+                .writeTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+                .dns(new ScopedDns())
+                .build();
+    }
+
+    /**
+     * The transport used when none is provided to {@link UPnPHelper}.
+     */
+    @NonNull
+    public static synchronized UPnPTransport getDefault() {
+        if (sDefault == null) {
+            sDefault = new UPnPTransport();
+        }
+        return sDefault;
+    }
+
+    /**
+     * Closes the idle connections and forgets the validators.
+     * The transport can still be used afterwards.
+     */
+    public void shutdown() {
+        mClient.connectionPool().evictAll();
+        synchronized (mValidated) {
+            mValidated.clear();
+        }
+    }
+
+    /**
+     * Downloads and reads a description. If the server answers that the description
+     * has not been modified since it was last read by the same reader, the value read
+     * then is returned without any body transfer.
+     */
+    @NonNull
+    <T> T fetch(@NonNull URL url, @NonNull BodyReader<T> reader) throws Exception {
+        return fetch(url, reader, null);
+    }
+
+    /**
+     * @param session the session owning the download: cancelling it cancels the call
+     */
+    @SuppressWarnings("unchecked")
+    @NonNull
+    <T> T fetch(@NonNull URL url, @NonNull BodyReader<T> reader, @Nullable UPnPScanSession session) throws Exception {
+        String key = url.toExternalForm();
+
+        Validated validated;
+        synchronized (mValidated) {
+            validated = find(mValidated.get(key), reader);
+        }
+
+        Request.Builder builder = new Request.Builder().url(url);
+        if (validated != null) {
+            if (validated.mETag != null) {
+                builder.header("If-None-Match", validated.mETag);
+            }
+            if (validated.mLastModified != null) {
+                builder.header("If-Modified-Since", validated.mLastModified);
+            }
+        }
+
+        Semaphore permits = getHostPermits(url.getHost());
+        permits.acquire();
+        Call call = mClient.newCall(builder.build());
+        Response response = null;
+        try {
+            if (session != null && !session.register(call)) {
+                throw new IOException("Canceled");
+            }
+            response = call.execute();
+
+            if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED && validated != null) {
+                Log.d(TAG, "fetch: not modified " + url);
+                // Read by this very reader
+                return (T) validated.mValue;
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("Unexpected code " + response);
+            }
+
+            T value = reader.read(response.body());
+
+            String eTag = response.header("ETag");
+            String lastModified = response.header("Last-Modified");
+            synchronized (mValidated) {
+                Validated[] slots = mValidated.get(key);
+                slots = (eTag != null || lastModified != null)
+                        ? with(slots, new Validated(eTag, lastModified, reader, value))
+                        : without(slots, reader);
+                if (slots == null) {
+                    mValidated.remove(key);
+                } else {
+                    mValidated.put(key, slots);
+                }
+            }
+            return value;
+
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+            if (session != null) {
+                session.unregister(call);
+            }
+            permits.release();
+        }
+    }
+
+    /**
+     * Remembers the interface through which an IPv6 link-local host can be reached.
+     * Does nothing for the other hosts.
+     *
+     * @param host an url host, IPv6 literals being enclosed in brackets
+     */
+    void addLinkLocalScope(@NonNull String host, @NonNull NetworkInterface intf) {
+        if (!host.startsWith("[")) {
+            return;
+        }
+        try {
+            InetAddress address = InetAddress.getByName(host.substring(1, host.length() - 1));
+            if (address instanceof Inet6Address && address.isLinkLocalAddress()) {
+                mLinkLocalScopes.put(scopeKey(address), intf);
+            }
+        } catch (UnknownHostException e) {
+            Log.w(TAG, "addLinkLocalScope.UnknownHostException: " + e.getMessage());
+        }
+    }
+
+    @NonNull
+    private static String scopeKey(@NonNull InetAddress address) {
+        return Arrays.toString(address.getAddress());
+    }
+
+    @NonNull
+    private Semaphore getHostPermits(@NonNull String host) {
+        Semaphore permits = mHostPermits.get(host);
+        if (permits == null) {
+            Semaphore created = new Semaphore(mMaxRequestsPerHost);
+            permits = mHostPermits.putIfAbsent(host, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
+        return permits;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // ScopedDns
+    ////////////////////////////////////////////////////////////////////////////////
+
+    private class ScopedDns implements Dns {
+
+        @Override
+        public List<InetAddress> lookup(@NonNull String hostname) throws UnknownHostException {
+            List<InetAddress> addresses = Dns.SYSTEM.lookup(hostname);
+            if (addresses.size() == 1 && addresses.get(0).isLinkLocalAddress()) {
+                InetAddress address = addresses.get(0);
+                NetworkInterface intf = mLinkLocalScopes.get(scopeKey(address));
+                if (intf != null && address instanceof Inet6Address) {
+                    return Collections.<InetAddress>singletonList(
+                            Inet6Address.getByAddress(null, address.getAddress(), intf));
+                }
+            }
+            return addresses;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // BodyReader
+    ////////////////////////////////////////////////////////////////////////////////
+
+    interface BodyReader<T> {
+
+        @NonNull
+        T read(@Nullable ResponseBody body) throws Exception;
+    }
+
+    /**
+     * @return the slot of the reader, or null
+     */
+    @Nullable
+    private static Validated find(@Nullable Validated[] slots, @NonNull BodyReader<?> reader) {
+        if (slots != null) {
+            for (Validated slot : slots) {
+                // Each reader has its own value for the url
+                if (slot.mReader == reader) {
+                    return slot;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the slots, with the slot of its reader replaced by the given one
+     */
+    @NonNull
+    private static Validated[] with(@Nullable Validated[] slots, @NonNull Validated validated) {
+        Validated[] others = without(slots, validated.mReader);
+        if (others == null) {
+            return new Validated[]{validated};
+        }
+        Validated[] result = Arrays.copyOf(others, others.length + 1);
+        result[others.length] = validated;
+        return result;
+    }
+
+    /**
+     * @return the slots without the one of the reader, or null if none is left
+     */
+    @Nullable
+    private static Validated[] without(@Nullable Validated[] slots, @NonNull BodyReader<?> reader) {
+        if (slots == null) {
+            return null;
+        }
+        ArrayList<Validated> others = new ArrayList<>(slots.length);
+        for (Validated slot : slots) {
+            if (slot.mReader != reader) {
+                others.add(slot);
+            }
+        }
+        return others.isEmpty() ? null : others.toArray(new Validated[others.size()]);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // Validated
+    ////////////////////////////////////////////////////////////////////////////////
+
+    private static class Validated {
+
+        @Nullable
+        private final String mETag;
+
+        @Nullable
+        private final String mLastModified;
+
+        @NonNull
+        private final BodyReader<?> mReader;
+
+        @NonNull
+        private final Object mValue;
+
+        Validated(@Nullable String eTag,
+                  @Nullable String lastModified,
+                  @NonNull BodyReader<?> reader,
+                  @NonNull Object value) {
+            this.mETag = eTag;
+            this.mLastModified = lastModified;
+            this.mReader = reader;
+            this.mValue = value;
+        }
+    }
+}
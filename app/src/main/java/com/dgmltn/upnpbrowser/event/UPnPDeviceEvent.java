@@ -9,12 +9,28 @@ public class UPnPDeviceEvent {
     @NonNull
     private UPnPDevice mUPnPDevice;
 
+    private boolean mUpdate;
+
     public UPnPDeviceEvent(@NonNull UPnPDevice uPnPDevice) {
+        this(uPnPDevice, false);
+    }
+
+    public UPnPDeviceEvent(@NonNull UPnPDevice uPnPDevice, boolean update) {
         this.mUPnPDevice = uPnPDevice;
+        this.mUpdate = update;
     }
 
     @NonNull
     public UPnPDevice getUPnPDevice() {
         return mUPnPDevice;
     }
+
+    /**
+     * @return true if the device was already known, and has changed its location,
+     * rebooted or changed its configuration, or its description has been downloaded
+     * on demand
+     */
+    public boolean isUpdate() {
+        return mUpdate;
+    }
 }
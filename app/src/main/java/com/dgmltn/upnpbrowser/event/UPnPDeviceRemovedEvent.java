@@ -0,0 +1,21 @@
+package com.dgmltn.upnpbrowser.event;
+
+import androidx.annotation.NonNull;
+
+public class UPnPDeviceRemovedEvent {
+
+    @NonNull
+    private String mUsn;
+
+    public UPnPDeviceRemovedEvent(@NonNull String usn) {
+        this.mUsn = usn;
+    }
+
+    /**
+     * Unique Service Name (or Unique Device Name) of the device that has left the network.
+     */
+    @NonNull
+    public String getUsn() {
+        return mUsn;
+    }
+}
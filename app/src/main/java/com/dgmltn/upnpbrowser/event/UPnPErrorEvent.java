@@ -21,4 +21,9 @@ public class UPnPErrorEvent {
     public int getErrorCode() {
         return mErrorCode;
     }
+
+    @Nullable
+    public String getMessage() {
+        return mMessage;
+    }
 }
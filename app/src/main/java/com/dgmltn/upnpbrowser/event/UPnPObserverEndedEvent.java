@@ -2,6 +2,101 @@ package com.dgmltn.upnpbrowser.event;
 
 public class UPnPObserverEndedEvent {
 
-    public UPnPObserverEndedEvent() {}
+    private final long mDurationMs;
+    private final long mTimeToFirstDeviceMs;
+    private final long mTimeToLastDeviceMs;
+    private final int mDeviceCount;
+    private final boolean mQuiescent;
+    private final int mReceivedCount;
+    private final int mDroppedCount;
+    private final boolean mCancelled;
+    private final int mCancelledCount;
+
+    public UPnPObserverEndedEvent() {
+        this(0, -1, -1, 0, false, 0, 0, false, 0);
+    }
+
+    public UPnPObserverEndedEvent(long durationMs,
+                                  long timeToFirstDeviceMs,
+                                  long timeToLastDeviceMs,
+                                  int deviceCount,
+                                  boolean quiescent,
+                                  int receivedCount,
+                                  int droppedCount,
+                                  boolean cancelled,
+                                  int cancelledCount) {
+        this.mDurationMs = durationMs;
+        this.mTimeToFirstDeviceMs = timeToFirstDeviceMs;
+        this.mTimeToLastDeviceMs = timeToLastDeviceMs;
+        this.mDeviceCount = deviceCount;
+        this.mQuiescent = quiescent;
+        this.mReceivedCount = receivedCount;
+        this.mDroppedCount = droppedCount;
+        this.mCancelled = cancelled;
+        this.mCancelledCount = cancelledCount;
+    }
+
+    /**
+     * @return the duration of the observation
+     */
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+
+    /**
+     * @return the time between the start of the observation and the first device found, or -1 if none
+     */
+    public long getTimeToFirstDeviceMs() {
+        return mTimeToFirstDeviceMs;
+    }
+
+    /**
+     * @return the time between the start of the observation and the last new device found, or -1 if none
+     */
+    public long getTimeToLastDeviceMs() {
+        return mTimeToLastDeviceMs;
+    }
+
+    /**
+     * @return the number of unique devices found
+     */
+    public int getDeviceCount() {
+        return mDeviceCount;
+    }
+
+    /**
+     * @return true if the observation ended early, no new device having been found during the quiet period
+     */
+    public boolean isQuiescent() {
+        return mQuiescent;
+    }
+
+    /**
+     * @return the number of SSDP datagrams received
+     */
+    public int getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /**
+     * @return the number of SSDP datagrams dropped because they were received faster than parsed
+     */
+    public int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return true if the observation was stopped before its end, its downloads being cancelled
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return the number of description downloads cancelled, queued or in flight
+     */
+    public int getCancelledCount() {
+        return mCancelledCount;
+    }
 
 }